@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2022 Vaticle
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.vaticle.factory.tracing.agent;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * The options of the agent, given as comma-separated {@code key=value} pairs in the agent arguments:
+ *
+ * <ul>
+ * <li>{@code enabled}: whether to instrument anything at all, {@code true} by default.</li>
+ * <li>{@code annotations}: whether to trace methods annotated with {@code @Traced}, {@code true} by default.</li>
+ * <li>{@code config}: a file of further methods to trace.</li>
+ * </ul>
+ *
+ * Each line of the config file is {@code include <pattern>} or {@code exclude <pattern>}, and lines starting with
+ * {@code #} are ignored. A pattern matches {@code <class>#<method>} names such as {@code com.example.Reasoner#execute},
+ * where {@code *} matches any characters; a pattern without {@code #} matches every method of the classes it matches.
+ * Excludes take precedence over includes.
+ */
+class AgentConfig {
+    private final boolean enabled;
+    private final boolean annotations;
+    private final List<MethodPattern> includes = new ArrayList<>();
+    private final List<MethodPattern> excludes = new ArrayList<>();
+
+    private AgentConfig(boolean enabled, boolean annotations) {
+        this.enabled = enabled;
+        this.annotations = annotations;
+    }
+
+    static AgentConfig parse(String args) throws IOException {
+        boolean enabled = true;
+        boolean annotations = true;
+        String configFile = null;
+        if (args != null && !args.isEmpty()) {
+            for (String option : args.split(",")) {
+                int separator = option.indexOf('=');
+                if (separator < 0) throw new IllegalArgumentException("Expected key=value but got '" + option + "'");
+                String key = option.substring(0, separator).trim();
+                String value = option.substring(separator + 1).trim();
+                switch (key) {
+                    case "enabled":
+                        enabled = Boolean.parseBoolean(value);
+                        break;
+                    case "annotations":
+                        annotations = Boolean.parseBoolean(value);
+                        break;
+                    case "config":
+                        configFile = value;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown agent option '" + key + "'");
+                }
+            }
+        }
+        AgentConfig config = new AgentConfig(enabled, annotations);
+        if (configFile != null) {
+            for (String line : Files.readAllLines(Paths.get(configFile), StandardCharsets.UTF_8)) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                String[] words = line.split("\\s+");
+                if (words.length != 2) throw new IllegalArgumentException("Expected include or exclude and a pattern but got '" + line + "'");
+                if (words[0].equals("include")) config.includes.add(new MethodPattern(words[1]));
+                else if (words[0].equals("exclude")) config.excludes.add(new MethodPattern(words[1]));
+                else throw new IllegalArgumentException("Expected include or exclude but got '" + words[0] + "'");
+            }
+        }
+        return config;
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    boolean tracesAnnotations() {
+        return annotations;
+    }
+
+    /**
+     * @return Whether some method of the class may be included by the config file, so that the classes that cannot be
+     * are skipped before they are parsed.
+     */
+    boolean mayInclude(String className) {
+        for (MethodPattern include : includes) {
+            if (include.classes.matcher(className).matches()) return true;
+        }
+        return false;
+    }
+
+    boolean includes(String className, String methodName) {
+        for (MethodPattern exclude : excludes) {
+            if (exclude.matches(className, methodName)) return false;
+        }
+        for (MethodPattern include : includes) {
+            if (include.matches(className, methodName)) return true;
+        }
+        return false;
+    }
+
+    boolean excludes(String className, String methodName) {
+        for (MethodPattern exclude : excludes) {
+            if (exclude.matches(className, methodName)) return true;
+        }
+        return false;
+    }
+
+    private static class MethodPattern {
+        private final Pattern classes;
+        private final Pattern methods;
+
+        private MethodPattern(String pattern) {
+            int separator = pattern.indexOf('#');
+            classes = compile(separator < 0 ? pattern : pattern.substring(0, separator));
+            methods = separator < 0 ? null : compile(pattern.substring(separator + 1));
+        }
+
+        private boolean matches(String className, String methodName) {
+            return classes.matcher(className).matches() && (methods == null || methods.matcher(methodName).matches());
+        }
+
+        private static Pattern compile(String glob) {
+            StringBuilder regex = new StringBuilder();
+            String[] literals = glob.split("\\*", -1);
+            for (int i = 0; i < literals.length; i++) {
+                if (i > 0) regex.append(".*");
+                if (!literals[i].isEmpty()) regex.append(Pattern.quote(literals[i]));
+            }
+            return Pattern.compile(regex.toString());
+        }
+    }
+}
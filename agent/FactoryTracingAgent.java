@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2022 Vaticle
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.vaticle.factory.tracing.agent;
+
+import java.io.IOException;
+import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@code java.lang.instrument} agent that traces methods with {@code FactoryTracingThreadStatic} without changing
+ * their source: methods annotated with {@code @Traced}, and methods selected by patterns in a config file. See
+ * {@link AgentConfig} for the options, which are given when the agent is attached, such as
+ * {@code -javaagent:factory-tracing-agent.jar=config=tracing.conf}. Passing {@code enabled=false} attaches the agent
+ * without instrumenting anything.
+ *
+ * The agent can also be attached to a running JVM, in which case the classes that are already loaded and have methods
+ * to trace are retransformed. The client library must be on the application's class path, since the woven code calls
+ * it directly; the traces are only recorded once the application has set a global tracing client and analysis.
+ */
+public class FactoryTracingAgent {
+
+    private FactoryTracingAgent() {
+    }
+
+    public static void premain(String args, Instrumentation instrumentation) throws IOException {
+        install(args, instrumentation, false);
+    }
+
+    public static void agentmain(String args, Instrumentation instrumentation) throws IOException {
+        install(args, instrumentation, true);
+    }
+
+    private static void install(String args, Instrumentation instrumentation, boolean attached) throws IOException {
+        AgentConfig config = AgentConfig.parse(args);
+        if (!config.isEnabled()) return;
+        TracingTransformer transformer = new TracingTransformer(config);
+        instrumentation.addTransformer(transformer, true);
+        if (!attached || !instrumentation.isRetransformClassesSupported()) return;
+
+        List<Class<?>> loaded = new ArrayList<>();
+        for (Class<?> type : instrumentation.getAllLoadedClasses()) {
+            if (instrumentation.isModifiableClass(type) && transformer.mayRetransform(type)) {
+                loaded.add(type);
+            }
+        }
+        for (Class<?> type : loaded) {
+            try {
+                instrumentation.retransformClasses(type);
+            } catch (UnmodifiableClassException | LinkageError e) {
+                System.err.println("Vaticle Factory tracing agent failed to instrument " + type.getName() + ": " + e);
+            }
+        }
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2022 Vaticle
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.vaticle.factory.tracing.agent;
+
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.AdviceAdapter;
+import org.objectweb.asm.commons.Method;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.annotation.Annotation;
+import java.lang.instrument.ClassFileTransformer;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Weaves a thread-static trace around every method selected by the {@link AgentConfig}:
+ *
+ * <pre>
+ * ThreadTrace trace = FactoryTracingThreadStatic.traceOnThread("Class.method");
+ * try {
+ *     // original body
+ * } finally {
+ *     trace.close();
+ * }
+ * </pre>
+ *
+ * The trace name is a constant of the woven class, and the call is a plain static call, so nothing is looked up at run
+ * time. Classes that select no method are returned unchanged without being rewritten.
+ */
+class TracingTransformer implements ClassFileTransformer {
+    private static final String TRACED = "Lcom/vaticle/factory/tracing/client/Traced;";
+    private static final String TRACED_CLASS = "com.vaticle.factory.tracing.client.Traced";
+    private static final Type THREAD_STATIC = Type.getObjectType("com/vaticle/factory/tracing/client/FactoryTracingThreadStatic");
+    private static final Type THREAD_TRACE = Type.getObjectType("com/vaticle/factory/tracing/client/FactoryTracingThreadStatic$ThreadTrace");
+    private static final Method TRACE_ON_THREAD = new Method("traceOnThread", THREAD_TRACE, new Type[]{Type.getType(String.class)});
+    private static final Method CLOSE = new Method("close", Type.VOID_TYPE, new Type[0]);
+    private static final String[] IGNORED_PACKAGES = {
+            "java/", "javax/", "jdk/", "sun/", "com/sun/",
+            "com/vaticle/factory/tracing/client/", "com/vaticle/factory/tracing/protocol/"
+    };
+    // The agent's own classes, including the ASM it is shaded with, but not the packages below it
+    private static final String AGENT_PACKAGE = "com/vaticle/factory/tracing/agent/";
+    private static final String AGENT_SHADED_PACKAGE = AGENT_PACKAGE + "shaded/";
+
+    private final AgentConfig config;
+
+    TracingTransformer(AgentConfig config) {
+        this.config = config;
+    }
+
+    /**
+     * @return Whether the class may have methods to trace, judging by its name alone.
+     */
+    boolean mayTransform(String internalName) {
+        if (isIgnored(internalName)) return false;
+        return config.tracesAnnotations() || config.mayInclude(internalName.replace('/', '.'));
+    }
+
+    /**
+     * @return Whether a class that is already loaded has methods to trace: those the config file may include, or, if
+     * annotations are traced, those it declares with {@code @Traced}. The annotation is matched by name, since the
+     * agent may not see the class loader of the client library.
+     */
+    boolean mayRetransform(Class<?> type) {
+        if (isIgnored(type.getName().replace('.', '/'))) return false;
+        if (config.mayInclude(type.getName())) return true;
+        if (!config.tracesAnnotations()) return false;
+        try {
+            for (java.lang.reflect.Method method : type.getDeclaredMethods()) {
+                for (Annotation annotation : method.getDeclaredAnnotations()) {
+                    if (annotation.annotationType().getName().equals(TRACED_CLASS)) return true;
+                }
+            }
+        } catch (LinkageError e) {
+            // The class refers to classes that cannot be loaded, so it is left as it is
+        }
+        return false;
+    }
+
+    private static boolean isIgnored(String internalName) {
+        for (String ignored : IGNORED_PACKAGES) {
+            if (internalName.startsWith(ignored)) return true;
+        }
+        if (internalName.startsWith(AGENT_SHADED_PACKAGE)) return true;
+        return internalName.startsWith(AGENT_PACKAGE) && internalName.indexOf('/', AGENT_PACKAGE.length()) < 0;
+    }
+
+    @Override
+    public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+                            ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+        if (className == null || !mayTransform(className)) return null;
+        try {
+            ClassReader reader = new ClassReader(classfileBuffer);
+            if (!config.mayInclude(className.replace('/', '.')) && !hasTracedMethod(reader)) return null;
+            ClassWriter writer = new LoaderClassWriter(reader, loader);
+            TracingClassVisitor visitor = new TracingClassVisitor(writer);
+            reader.accept(visitor, ClassReader.EXPAND_FRAMES);
+            return visitor.changed ? writer.toByteArray() : null;
+        } catch (Throwable e) {
+            // A transformer must not throw, and the class still loads untraced
+            System.err.println("Vaticle Factory tracing agent failed to instrument " + className + ": " + e);
+            return null;
+        }
+    }
+
+    private boolean hasTracedMethod(ClassReader reader) {
+        if (!config.tracesAnnotations()) return false;
+        boolean[] found = new boolean[1];
+        reader.accept(new ClassVisitor(Opcodes.ASM9) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+                return new MethodVisitor(Opcodes.ASM9) {
+                    @Override
+                    public AnnotationVisitor visitAnnotation(String annotation, boolean visible) {
+                        if (annotation.equals(TRACED)) found[0] = true;
+                        return null;
+                    }
+                };
+            }
+        }, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        return found[0];
+    }
+
+    private class TracingClassVisitor extends ClassVisitor {
+        private String className;
+        private String simpleName;
+        private boolean changed;
+
+        private TracingClassVisitor(ClassVisitor next) {
+            super(Opcodes.ASM9, next);
+        }
+
+        @Override
+        public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+            className = name.replace('/', '.');
+            simpleName = name.substring(name.lastIndexOf('/') + 1);
+            super.visit(version, access, name, signature, superName, interfaces);
+        }
+
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+            MethodVisitor next = super.visitMethod(access, name, descriptor, signature, exceptions);
+            int skipped = Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE | Opcodes.ACC_BRIDGE | Opcodes.ACC_SYNTHETIC;
+            if ((access & skipped) != 0 || name.startsWith("<")) return next;
+            return new TracingMethodAdapter(next, access, name, descriptor);
+        }
+
+        private class TracingMethodAdapter extends AdviceAdapter {
+            private final boolean excluded;
+            private boolean traced;
+            private String traceName;
+            private int trace;
+            private final Label start = new Label();
+
+            private TracingMethodAdapter(MethodVisitor next, int access, String name, String descriptor) {
+                super(Opcodes.ASM9, next, access, name, descriptor);
+                excluded = config.excludes(className, name);
+                traced = config.includes(className, name);
+                traceName = simpleName + "." + name;
+            }
+
+            @Override
+            public AnnotationVisitor visitAnnotation(String descriptor, boolean visible) {
+                AnnotationVisitor next = super.visitAnnotation(descriptor, visible);
+                if (!descriptor.equals(TRACED) || !config.tracesAnnotations() || excluded) return next;
+                traced = true;
+                return new AnnotationVisitor(Opcodes.ASM9, next) {
+                    @Override
+                    public void visit(String name, Object value) {
+                        if (name.equals("value") && !((String) value).isEmpty()) traceName = (String) value;
+                        super.visit(name, value);
+                    }
+                };
+            }
+
+            @Override
+            protected void onMethodEnter() {
+                if (!traced) return;
+                changed = true;
+                push(traceName);
+                invokeStatic(THREAD_STATIC, TRACE_ON_THREAD);
+                trace = newLocal(THREAD_TRACE);
+                storeLocal(trace);
+                mark(start);
+            }
+
+            @Override
+            protected void onMethodExit(int opcode) {
+                // Exceptions, whether thrown here or further down, are handled by the handler added in visitMaxs
+                if (!traced || opcode == ATHROW) return;
+                loadLocal(trace);
+                invokeInterface(THREAD_TRACE, CLOSE);
+            }
+
+            @Override
+            public void visitMaxs(int maxStack, int maxLocals) {
+                if (traced) {
+                    // Added last, so that the method's own handlers take precedence over it
+                    Label handler = mark();
+                    visitTryCatchBlock(start, handler, handler, null);
+                    loadLocal(trace);
+                    invokeInterface(THREAD_TRACE, CLOSE);
+                    throwException();
+                }
+                super.visitMaxs(maxStack, maxLocals);
+            }
+        }
+    }
+
+    /**
+     * Computes frames by reading the class hierarchy from the class files the loader can see, since loading classes
+     * from a transformer could recurse into it or load them too early.
+     */
+    private static class LoaderClassWriter extends ClassWriter {
+        private final ClassLoader loader;
+
+        private LoaderClassWriter(ClassReader reader, ClassLoader loader) {
+            super(reader, ClassWriter.COMPUTE_FRAMES);
+            this.loader = loader != null ? loader : ClassLoader.getSystemClassLoader();
+        }
+
+        @Override
+        protected String getCommonSuperClass(String type1, String type2) {
+            List<String> ancestors = new ArrayList<>();
+            for (String type = type1; type != null; type = superName(type)) {
+                if (type.isEmpty()) return "java/lang/Object";
+                ancestors.add(type);
+            }
+            for (String type = type2; type != null; type = superName(type)) {
+                if (type.isEmpty()) return "java/lang/Object";
+                if (ancestors.contains(type)) return type;
+            }
+            return "java/lang/Object";
+        }
+
+        /**
+         * @return The superclass, null for {@code java/lang/Object}, or empty for interfaces and unknown classes.
+         */
+        private String superName(String type) {
+            if (type.equals("java/lang/Object")) return null;
+            try (InputStream classFile = loader.getResourceAsStream(type + ".class")) {
+                if (classFile == null) return "";
+                ClassReader reader = new ClassReader(classFile);
+                return (reader.getAccess() & Opcodes.ACC_INTERFACE) != 0 ? "" : reader.getSuperName();
+            } catch (IOException e) {
+                return "";
+            }
+        }
+    }
+}
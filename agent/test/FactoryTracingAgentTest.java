@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2022 Vaticle
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.vaticle.factory.tracing.agent.test;
+
+import com.vaticle.factory.tracing.agent.FactoryTracingAgent;
+import com.vaticle.factory.tracing.client.FactoryTracing;
+import com.vaticle.factory.tracing.client.FactoryTracingStandard;
+import com.vaticle.factory.tracing.client.FactoryTracingThreadStatic;
+import com.vaticle.factory.tracing.client.FactoryTracingThreadStatic.ThreadContext;
+import com.vaticle.factory.tracing.client.FactoryTracingThreadStatic.ThreadTrace;
+import com.vaticle.factory.tracing.client.Traced;
+import com.vaticle.factory.tracing.protocol.TracingProto;
+import com.vaticle.factory.tracing.protocol.TracingServiceGrpc;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import io.grpc.testing.GrpcCleanupRule;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+
+import java.io.InputStream;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+/**
+ * Weaves sample classes with the transformer the agent installs, and runs them against a global tracing client. It has
+ * a test target of its own, since the global tracing client can only be set once per JVM.
+ */
+public class FactoryTracingAgentTest {
+
+    @ClassRule
+    public static final GrpcCleanupRule grpcCleanup = new GrpcCleanupRule();
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private static final List<TracingProto.Trace.Req> traces = new CopyOnWriteArrayList<>();
+    private static FactoryTracing client;
+
+    public interface Sample {
+        ThreadTrace traced();
+
+        void tracedThrows();
+
+        ThreadTrace untraced();
+    }
+
+    public static class AnnotatedSample implements Sample {
+        @Override
+        @Traced
+        public ThreadTrace traced() {
+            return FactoryTracingThreadStatic.currentThreadTrace();
+        }
+
+        @Override
+        @Traced("annotated-throws")
+        public void tracedThrows() {
+            throw new IllegalStateException("Thrown by the sample");
+        }
+
+        @Override
+        public ThreadTrace untraced() {
+            return FactoryTracingThreadStatic.currentThreadTrace();
+        }
+    }
+
+    public static class PatternSample implements Sample {
+        @Override
+        public ThreadTrace traced() {
+            return FactoryTracingThreadStatic.currentThreadTrace();
+        }
+
+        @Override
+        public void tracedThrows() {
+            throw new IllegalStateException("Thrown by the sample");
+        }
+
+        @Override
+        public ThreadTrace untraced() {
+            return FactoryTracingThreadStatic.currentThreadTrace();
+        }
+    }
+
+    @BeforeClass
+    public static void setGlobalTracingClient() throws Exception {
+        String server = InProcessServerBuilder.generateName();
+        grpcCleanup.register(InProcessServerBuilder.forName(server).directExecutor().addService(new TracingServiceGrpc.TracingServiceImplBase() {
+            @Override
+            public void create(TracingProto.Analysis.Req request, StreamObserver<TracingProto.Analysis.Res> responseObserver) {
+                responseObserver.onNext(TracingProto.Analysis.Res.newBuilder().setAnalysisId(1).build());
+                responseObserver.onCompleted();
+            }
+
+            @Override
+            public StreamObserver<TracingProto.Trace.Req> stream(StreamObserver<TracingProto.Trace.Res> responseObserver) {
+                return new StreamObserver<TracingProto.Trace.Req>() {
+                    @Override
+                    public void onNext(TracingProto.Trace.Req req) {
+                        traces.add(req);
+                        responseObserver.onNext(TracingProto.Trace.Res.newBuilder().setAckedSequence(req.getSequence()).build());
+                    }
+
+                    @Override
+                    public void onError(Throwable throwable) {
+                    }
+
+                    @Override
+                    public void onCompleted() {
+                        responseObserver.onCompleted();
+                    }
+                };
+            }
+        }).build().start());
+        client = new FactoryTracingStandard(grpcCleanup.register(InProcessChannelBuilder.forName(server).directExecutor().build()));
+        FactoryTracingThreadStatic.setGlobalTracingClient(client);
+        FactoryTracingThreadStatic.openGlobalAnalysis("owner", "repo", "commit", "analysis");
+    }
+
+    @AfterClass
+    public static void closeGlobalTracingClient() throws Exception {
+        client.close();
+    }
+
+    @Test
+    public void annotatedMethodsAreTracedOnReturnAndThrow() throws Exception {
+        Sample sample = weave(install(null), AnnotatedSample.class);
+
+        assertTracedOnReturnAndThrow(sample, "FactoryTracingAgentTest$AnnotatedSample.traced", "annotated-throws");
+    }
+
+    @Test
+    public void configuredMethodsAreTracedUnlessExcluded() throws Exception {
+        Path config = folder.getRoot().toPath().resolve("tracing.conf");
+        Files.write(config, ("# Traces every method of the sample but one\n" +
+                "include *.FactoryTracingAgentTest$PatternSample\n" +
+                "exclude *$PatternSample#untraced\n").getBytes(StandardCharsets.UTF_8));
+        Sample sample = weave(install("annotations=false,config=" + config), PatternSample.class);
+
+        assertTracedOnReturnAndThrow(sample, "FactoryTracingAgentTest$PatternSample.traced",
+                                     "FactoryTracingAgentTest$PatternSample.tracedThrows");
+    }
+
+    @Test
+    public void annotationsAreIgnoredWhenDisabled() throws Exception {
+        assertThat(transform(install("annotations=false"), AnnotatedSample.class), nullValue());
+    }
+
+    @Test
+    public void unselectedClassesAreNotRewritten() throws Exception {
+        assertThat(transform(install(null), PatternSample.class), nullValue());
+    }
+
+    @Test
+    public void disabledAgentInstallsNothing() throws Exception {
+        Instrumentation instrumentation = mock(Instrumentation.class);
+        FactoryTracingAgent.premain("enabled=false", instrumentation);
+        verifyNoInteractions(instrumentation);
+    }
+
+    @Test
+    public void invalidOptionsAreRejected() throws Exception {
+        Path config = folder.getRoot().toPath().resolve("invalid.conf");
+        Files.write(config, "trace *Sample\n".getBytes(StandardCharsets.UTF_8));
+        Instrumentation instrumentation = mock(Instrumentation.class);
+
+        assertThrows(IllegalArgumentException.class, () -> FactoryTracingAgent.premain("enabled", instrumentation));
+        assertThrows(IllegalArgumentException.class, () -> FactoryTracingAgent.premain("colour=blue", instrumentation));
+        assertThrows(IllegalArgumentException.class, () -> FactoryTracingAgent.premain("config=" + config, instrumentation));
+        verifyNoInteractions(instrumentation);
+    }
+
+    @Test
+    public void attachingRetransformsOnlyClassesWithMethodsToTrace() throws Exception {
+        Instrumentation instrumentation = mock(Instrumentation.class);
+        when(instrumentation.isRetransformClassesSupported()).thenReturn(true);
+        when(instrumentation.isModifiableClass(any())).thenReturn(true);
+        when(instrumentation.getAllLoadedClasses()).thenReturn(new Class<?>[]{
+                String.class, FactoryTracingAgentTest.class, AnnotatedSample.class, PatternSample.class
+        });
+
+        FactoryTracingAgent.agentmain(null, instrumentation);
+
+        verify(instrumentation).retransformClasses(AnnotatedSample.class);
+        verify(instrumentation, never()).retransformClasses(PatternSample.class);
+        verify(instrumentation, never()).retransformClasses(FactoryTracingAgentTest.class);
+        verify(instrumentation, never()).retransformClasses(String.class);
+    }
+
+    private static ClassFileTransformer install(String args) throws Exception {
+        Instrumentation instrumentation = mock(Instrumentation.class);
+        FactoryTracingAgent.premain(args, instrumentation);
+        ArgumentCaptor<ClassFileTransformer> transformer = ArgumentCaptor.forClass(ClassFileTransformer.class);
+        verify(instrumentation).addTransformer(transformer.capture(), eq(true));
+        return transformer.getValue();
+    }
+
+    private static byte[] transform(ClassFileTransformer transformer, Class<?> type) throws Exception {
+        String internalName = type.getName().replace('.', '/');
+        byte[] classFile;
+        try (InputStream stream = type.getClassLoader().getResourceAsStream(internalName + ".class")) {
+            classFile = stream.readAllBytes();
+        }
+        return transformer.transform(type.getClassLoader(), internalName, null, null, classFile);
+    }
+
+    /**
+     * Defines the woven class in a loader of its own, which finds everything else, including {@link Sample}, through
+     * the test's loader.
+     */
+    private static Sample weave(ClassFileTransformer transformer, Class<? extends Sample> type) throws Exception {
+        byte[] woven = transform(transformer, type);
+        assertThat(woven, notNullValue());
+        ClassLoader loader = new ClassLoader(type.getClassLoader()) {
+            {
+                defineClass(type.getName(), woven, 0, woven.length);
+            }
+        };
+        return (Sample) loader.loadClass(type.getName()).getDeclaredConstructor().newInstance();
+    }
+
+    private static void assertTracedOnReturnAndThrow(Sample sample, String tracedName, String throwsName) throws Exception {
+        try (ThreadContext ignored = FactoryTracingThreadStatic.contextOnThread("tracker", 0)) {
+            assertThat(sample.traced(), notNullValue());
+            assertThat(FactoryTracingThreadStatic.currentThreadTrace(), nullValue());
+
+            assertThrows(IllegalStateException.class, sample::tracedThrows);
+            assertThat(FactoryTracingThreadStatic.currentThreadTrace(), nullValue());
+
+            assertThat(sample.untraced(), nullValue());
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!(ended(tracedName) && ended(throwsName)) && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(ended(tracedName), equalTo(true));
+        assertThat(ended(throwsName), equalTo(true));
+    }
+
+    private static boolean ended(String name) {
+        TracingProto.Trace.Req started = traces.stream().filter(req -> req.getName().equals(name)).findFirst().orElse(null);
+        return started != null && traces.stream().anyMatch(req -> req.getId().equals(started.getId()) && req.getEnded() != 0);
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2022 Vaticle
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.vaticle.factory.tracing.benchmark;
+
+import com.vaticle.factory.tracing.client.FactoryTracingThreadStatic;
+import com.vaticle.factory.tracing.client.FactoryTracingThreadStatic.ThreadContext;
+import com.vaticle.factory.tracing.client.FactoryTracingThreadStatic.ThreadTrace;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Measures the cost of thread-static tracing calls while tracing is disabled, which should be indistinguishable from
+ * {@link #baseline}. The {@link #atomicBooleanGuard} benchmark reproduces the volatile load the calls used to pay for
+ * comparison.
+ *
+ * Run with {@code bazel run //benchmark -- ThreadStaticDisabledBenchmark}, adding {@code -prof perfasm} to confirm
+ * that no tracing code is left in the compiled loop.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class ThreadStaticDisabledBenchmark {
+    private static final AtomicBoolean ENABLED = new AtomicBoolean(false);
+
+    private int value;
+
+    @Benchmark
+    public int baseline() {
+        return value++;
+    }
+
+    @Benchmark
+    public int atomicBooleanGuard(Blackhole blackhole) {
+        if (ENABLED.get()) blackhole.consume(this);
+        return value++;
+    }
+
+    @Benchmark
+    public int traceOnThread() {
+        try (ThreadTrace ignored = FactoryTracingThreadStatic.traceOnThread("benchmark")) {
+            return value++;
+        }
+    }
+
+    @Benchmark
+    public int contextOnThread() {
+        try (ThreadContext ignored = FactoryTracingThreadStatic.contextOnThread("tracker", 0)) {
+            return value++;
+        }
+    }
+
+    @Benchmark
+    public int currentThreadTrace() {
+        ThreadTrace trace = FactoryTracingThreadStatic.currentThreadTrace();
+        return trace.getId() == null ? value++ : value--;
+    }
+}
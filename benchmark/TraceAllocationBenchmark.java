@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2022 Vaticle
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.vaticle.factory.tracing.benchmark;
+
+import com.vaticle.factory.tracing.client.FactoryTracing;
+import com.vaticle.factory.tracing.protocol.TracingProto.Analysis;
+import com.vaticle.factory.tracing.protocol.TracingProto.Trace;
+import com.vaticle.factory.tracing.protocol.TracingServiceGrpc.TracingServiceImplBase;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of a trace tree that is a chain of the given depth, sent by the standard client to an in-process
+ * server that acknowledges and discards it. The allocation per span should stay small and fixed as the depth grows.
+ *
+ * Run with {@code bazel run //benchmark -- TraceAllocationBenchmark -prof gc}, and divide
+ * {@code gc.alloc.rate.norm} by the depth plus one for the bytes allocated per span.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class TraceAllocationBenchmark {
+    private static final String SERVER_NAME = "trace-allocation-benchmark";
+    private static final int ACKNOWLEDGE_EVERY = 64;
+
+    @Param({"1", "16"})
+    private int depth;
+
+    private Server server;
+    private FactoryTracing client;
+    private FactoryTracing.Analysis analysis;
+
+    @Setup
+    public void setUp() throws Exception {
+        server = InProcessServerBuilder.forName(SERVER_NAME).directExecutor()
+                .addService(new DiscardingService()).build().start();
+        client = FactoryTracing.builder()
+                .channel(InProcessChannelBuilder.forName(SERVER_NAME).directExecutor().build())
+                .build();
+        analysis = client.analysis("owner", "repo", "commit", "benchmark");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        client.close();
+        server.shutdownNow();
+    }
+
+    @Benchmark
+    public FactoryTracing.Trace traceTree() {
+        FactoryTracing.Trace root = analysis.trace("root", "tracker", 0);
+        trace(root, depth);
+        return root.end();
+    }
+
+    private static void trace(FactoryTracing.Trace parent, int depth) {
+        if (depth == 0) return;
+        FactoryTracing.Trace child = parent.trace("child");
+        trace(child, depth - 1);
+        child.end();
+    }
+
+    private static class DiscardingService extends TracingServiceImplBase {
+        @Override
+        public void create(Analysis.Req request, StreamObserver<Analysis.Res> responseObserver) {
+            responseObserver.onNext(Analysis.Res.newBuilder().setAnalysisId(1).build());
+            responseObserver.onCompleted();
+        }
+
+        @Override
+        public StreamObserver<Trace.Req> stream(StreamObserver<Trace.Res> responseObserver) {
+            return new StreamObserver<Trace.Req>() {
+                @Override
+                public void onNext(Trace.Req req) {
+                    // Acknowledged in batches, so that the client holds few events for resending, as it would with a
+                    // real server, without an acknowledgement per event adding to the allocations measured
+                    if (req.getSequence() % ACKNOWLEDGE_EVERY == 0) {
+                        responseObserver.onNext(Trace.Res.newBuilder().setAckedSequence(req.getSequence()).build());
+                    }
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                }
+
+                @Override
+                public void onCompleted() {
+                    responseObserver.onCompleted();
+                }
+            };
+        }
+    }
+}
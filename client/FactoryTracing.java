@@ -21,11 +21,11 @@
 
 package com.vaticle.factory.tracing.client;
 
-import io.grpc.ManagedChannelBuilder;
-
-import javax.annotation.Nullable;
+import java.time.Duration;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 /**
  * Vaticle Factory Tracing client.
@@ -54,6 +54,23 @@ public interface FactoryTracing extends AutoCloseable {
      */
     Trace trace(UUID rootId, UUID parentId, String name);
 
+    /**
+     * Begin a continuation trace from the bits of a given root and parent ID, such as IDs received in binary form,
+     * without creating {@link UUID}s.
+     *
+     * @param rootIdMostSignificantBits    The most significant bits of the trace tree rootId.
+     * @param rootIdLeastSignificantBits   The least significant bits of the trace tree rootId.
+     * @param parentIdMostSignificantBits  The most significant bits of the trace parentId.
+     * @param parentIdLeastSignificantBits The least significant bits of the trace parentId.
+     * @param name                         The trace name.
+     * @return An instance of the Trace to send further data on.
+     */
+    default Trace trace(long rootIdMostSignificantBits, long rootIdLeastSignificantBits,
+                        long parentIdMostSignificantBits, long parentIdLeastSignificantBits, String name) {
+        return trace(new UUID(rootIdMostSignificantBits, rootIdLeastSignificantBits),
+                     new UUID(parentIdMostSignificantBits, parentIdLeastSignificantBits), name);
+    }
+
     /**
      * Decorate a FactoryTracing with Slf4j logging (if the logging is enabled to the TRACE level).
      *
@@ -63,6 +80,55 @@ public interface FactoryTracing extends AutoCloseable {
         return FactoryTracingSlf4j.wrapIfLoggingEnabled(this);
     }
 
+    /**
+     * Decorate a FactoryTracing with Slf4j logging (if the logging is enabled to the TRACE level) that logs a single
+     * line when each trace ends, carrying its ids, duration in nanoseconds, labels and data.
+     *
+     * @return If logging is enabled, a wrapped instance that logs completed traces to Slf4j, otherwise this instance.
+     */
+    default FactoryTracing withCompletionLogging() {
+        return FactoryTracingSlf4j.wrapForCompletionIfLoggingEnabled(this);
+    }
+
+    /**
+     * Get the self-instrumentation metrics of this client, such as the number of events and bytes sent and the number
+     * of events dropped. Clients that connect to a server also expose these metrics through JMX while they are open.
+     *
+     * @return The metrics of this client, which are always zero for clients that send nothing.
+     */
+    default TracingMetrics metrics() {
+        return TracingMetrics.none();
+    }
+
+    /**
+     * Wait for the events traced so far to reach the server.
+     *
+     * @return A future that completes when the server has acknowledged the events traced before this call, or fails
+     * if the connection failed or the client was closed first.
+     */
+    default CompletableFuture<Void> flush() {
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Close this client in the background, draining outstanding events for at most the given time. Any connection is
+     * forcibly closed once the deadline has passed. The default implementation closes synchronously, which suits
+     * clients that have nothing to drain.
+     *
+     * @param deadline The maximum time to spend closing.
+     * @return A future that completes once the client is closed, or fails with the error that closing raised.
+     */
+    default CompletableFuture<Void> closeAsync(Duration deadline) {
+        CompletableFuture<Void> closed = new CompletableFuture<>();
+        try {
+            close();
+            closed.complete(null);
+        } catch (Exception e) {
+            closed.completeExceptionally(e);
+        }
+        return closed;
+    }
+
     /**
      * Get a FactoryTracing that can be used to safely run tracing-enabled applications with no connection and minimal
      * associated overhead.
@@ -75,14 +141,34 @@ public interface FactoryTracing extends AutoCloseable {
     }
 
     /**
-     * A plaintext variation of Vaticle Factory tracing, useful for testing the tracing protocol but should not be used in real
-     * applications.
+     * Get a FactoryTracing that records traces into JDK Flight Recorder recordings rather than sending them to a
+     * server. See {@link FactoryTracingJfr}.
+     *
+     * @return An instance that records traces while a recording with its events enabled is running.
+     */
+    static FactoryTracing createJfr() {
+        return new FactoryTracingJfr();
+    }
+
+    /**
+     * Configure a client with options beyond those of the {@code create} methods, such as compression, the native
+     * transport and message size limits.
+     *
+     * @return A builder for a new client.
+     */
+    static FactoryTracingBuilder builder() {
+        return new FactoryTracingBuilder();
+    }
+
+    /**
+     * A variation of Vaticle Factory tracing without authentication, useful for testing the tracing protocol but
+     * should not be used in real applications.
      *
      * @param uri The URI of your test tracing server.
      * @return An instance that has connected to your server without any authentication.
      */
     static FactoryTracing create(String uri) {
-        return create(uri, null);
+        return builder().target(uri).build();
     }
 
     /**
@@ -94,16 +180,22 @@ public interface FactoryTracing extends AutoCloseable {
      * @return An instance that has securely connected to your Vaticle Factory server.
      */
     static FactoryTracing create(String uri, String username, String token) {
-        return create(uri, new FactoryTokenAuthClientInterceptor(username, token));
+        return builder().target(uri).credentials(username, token).build();
     }
 
-    private static FactoryTracing create(String uri, @Nullable FactoryTokenAuthClientInterceptor authClientInterceptor) {
-        ManagedChannelBuilder<?> channelBuilder = ManagedChannelBuilder.forTarget(uri)
-                .keepAliveTime(1, TimeUnit.MINUTES)
-                .keepAliveWithoutCalls(true)
-                .useTransportSecurity();
-        if (authClientInterceptor != null) channelBuilder.intercept(authClientInterceptor);
-        return new FactoryTracingStandard(channelBuilder.build());
+    /**
+     * Connect to the Vaticle Factory tracing server with TLS, aggregating traces into latency histograms on the client
+     * rather than sending them individually. See {@link FactoryTracingAggregating}.
+     *
+     * @param uri      The URI of your Vaticle Factory server.
+     * @param username Your username on the Vaticle Factory server.
+     * @param token    Your API token for the username.
+     * @param interval How often histogram snapshots are sent.
+     * @param unit     The time unit of the interval.
+     * @return An instance that has securely connected to your Vaticle Factory server.
+     */
+    static FactoryTracing createAggregating(String uri, String username, String token, long interval, TimeUnit unit) {
+        return builder().target(uri).credentials(username, token).aggregating(interval, unit).build();
     }
 
     /**
@@ -144,6 +236,18 @@ public interface FactoryTracing extends AutoCloseable {
          */
         Trace data(String data);
 
+        /**
+         * Submit text data for the trace (such as JSON) that is only computed if it will actually be sent, so that
+         * expensive data costs nothing when tracing is disabled or the trace is not exported. Behaviour when called
+         * more than once on an instance is undefined and should be avoided.
+         *
+         * @param data Supplier of the trace data, called at most once.
+         * @return This trace.
+         */
+        default Trace data(Supplier<String> data) {
+            return data(data.get());
+        }
+
         /**
          * Submit String labels to add to this trace. This may be called many times as each call is additive.
          *
@@ -152,6 +256,82 @@ public interface FactoryTracing extends AutoCloseable {
          */
         Trace labels(String... labels);
 
+        /**
+         * Submit a precomputed set of String labels to add to this trace. This is additive in the same way as
+         * {@link #labels(String...)}, but avoids allocating and encoding the labels on every call.
+         *
+         * @param labelSet Labels to append to this instance.
+         * @return This trace.
+         */
+        default Trace labels(LabelSet labelSet) {
+            return labels(labelSet.array());
+        }
+
+        /**
+         * Set a typed attribute on this trace, sent with the end of the trace. Setting the same key again replaces its
+         * value. Implementations that do not send attributes ignore them.
+         *
+         * @param key   The attribute key.
+         * @param value The attribute value.
+         * @return This trace.
+         */
+        default Trace attribute(String key, long value) {
+            return this;
+        }
+
+        /**
+         * @see #attribute(String, long)
+         */
+        default Trace attribute(String key, double value) {
+            return this;
+        }
+
+        /**
+         * @see #attribute(String, long)
+         */
+        default Trace attribute(String key, boolean value) {
+            return this;
+        }
+
+        /**
+         * @see #attribute(String, long)
+         */
+        default Trace attribute(String key, byte[] value) {
+            return this;
+        }
+
+        /**
+         * @see #attribute(String, long)
+         */
+        default Trace attribute(String key, String value) {
+            return this;
+        }
+
+        /**
+         * Add to a named numeric counter on this trace, such as rows scanned or bytes read. Counters are held locally
+         * and sent once with the end of the trace, where they can be summed across traces with the same path.
+         * Implementations that do not send counters ignore them.
+         *
+         * @param name  The counter name.
+         * @param delta The amount to add to the counter.
+         * @return This trace.
+         */
+        default Trace count(String name, long delta) {
+            return this;
+        }
+
+        /**
+         * Mark a named point in time within this trace, such as a checkpoint in a loop. Events are much cheaper than
+         * starting and ending a child trace: they are held locally and sent with the end of the trace, timed relative
+         * to its start. Implementations that do not send events ignore them.
+         *
+         * @param name The event name.
+         * @return This trace.
+         */
+        default Trace event(String name) {
+            return this;
+        }
+
         /**
          * Ends the trace immediately, using the current time from {@link System#currentTimeMillis()} as the end
          * timestamp.
@@ -178,5 +358,42 @@ public interface FactoryTracing extends AutoCloseable {
          * @return The ID for this trace.
          */
         UUID getId();
+
+        /**
+         * Get the root ID for this trace without creating a {@link UUID}, for example to send it in binary form.
+         *
+         * @return The most significant bits of {@link #getRootId()}, or 0 if this trace has no ID.
+         */
+        default long getRootIdMostSignificantBits() {
+            UUID rootId = getRootId();
+            return rootId == null ? 0 : rootId.getMostSignificantBits();
+        }
+
+        /**
+         * @return The least significant bits of {@link #getRootId()}, or 0 if this trace has no ID.
+         */
+        default long getRootIdLeastSignificantBits() {
+            UUID rootId = getRootId();
+            return rootId == null ? 0 : rootId.getLeastSignificantBits();
+        }
+
+        /**
+         * Get the ID for this trace without creating a {@link UUID}. The IDs of traces sent to a server are never 0 in
+         * both halves.
+         *
+         * @return The most significant bits of {@link #getId()}, or 0 if this trace has no ID.
+         */
+        default long getIdMostSignificantBits() {
+            UUID id = getId();
+            return id == null ? 0 : id.getMostSignificantBits();
+        }
+
+        /**
+         * @return The least significant bits of {@link #getId()}, or 0 if this trace has no ID.
+         */
+        default long getIdLeastSignificantBits() {
+            UUID id = getId();
+            return id == null ? 0 : id.getLeastSignificantBits();
+        }
     }
 }
@@ -0,0 +1,380 @@
+/*
+ * Copyright (C) 2022 Vaticle
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.vaticle.factory.tracing.client;
+
+import com.vaticle.factory.tracing.protocol.TracingProto;
+import com.vaticle.factory.tracing.protocol.TracingProto.Histogram;
+import com.vaticle.factory.tracing.protocol.TracingServiceGrpc;
+import com.vaticle.factory.tracing.protocol.TracingServiceGrpc.TracingServiceStub;
+import io.grpc.ManagedChannel;
+import io.grpc.stub.StreamObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A FactoryTracing that never sends individual traces. Instead, the duration of every trace is recorded into a local
+ * {@link LatencyHistogram} keyed by the analysis, the root trace tracker and the path of trace names from the root,
+ * and a snapshot of every histogram that received new durations is sent once per interval. Network cost is therefore
+ * proportional to the number of distinct paths rather than the number of traces.
+ *
+ * Trace data and labels are not aggregated and are discarded. Iterations are merged into the same distribution.
+ *
+ * Analyses are created asynchronously. Durations recorded before the analysis ID arrives are kept until it does, and
+ * those of an analysis that could not be created are dropped. A snapshot that fails to send is merged back into its
+ * histogram and sent with the next one, whose interval then starts where the failed one did.
+ */
+public class FactoryTracingAggregating implements FactoryTracing {
+    private static final Logger LOG = LoggerFactory.getLogger(FactoryTracingAggregating.class);
+
+    private final ManagedChannel channel;
+    private final TracingServiceStub tracingServiceStub;
+    private final HistogramStream stream;
+    private final TracingMetrics metrics;
+
+    private final ConcurrentLinkedQueue<PathNode> trackers = new ConcurrentLinkedQueue<>();
+    private final ConcurrentHashMap<String, PathNode> continuations = new ConcurrentHashMap<>();
+    private final TraceStream.AnalysisId noAnalysis = new TraceStream.AnalysisId();
+    private final ScheduledExecutorService scheduler;
+    private long intervalStart;
+    private final Lifecycle.Closing closing = new Lifecycle.Closing(this::closeWithin);
+    private final Thread shutdownHook;
+
+    public FactoryTracingAggregating(ManagedChannel channel, long interval, TimeUnit unit) {
+        this(channel, new FactoryTracingBuilder().aggregating(interval, unit));
+    }
+
+    FactoryTracingAggregating(ManagedChannel channel, FactoryTracingBuilder options) {
+        long interval = options.aggregationInterval();
+        TimeUnit unit = options.aggregationUnit();
+        this.channel = channel;
+        tracingServiceStub = options.configure(TracingServiceGrpc.newStub(channel));
+        metrics = new TracingMetrics();
+        metrics.register(FactoryTracingAggregating.class);
+        stream = new HistogramStream(tracingServiceStub, metrics);
+        noAnalysis.created(0);
+        intervalStart = System.currentTimeMillis();
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "factory-tracing-aggregator");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(this::sendSnapshotsSafely, interval, interval, unit);
+        Duration shutdownHookBudget = options.shutdownHookBudget();
+        shutdownHook = shutdownHookBudget == null ? null : Lifecycle.addShutdownHook(closing, shutdownHookBudget);
+    }
+
+    @Override
+    public Analysis analysis(String owner, String repo, String commit, String analysisName) {
+        requireNonNull(owner, "Cannot use null owner");
+        requireNonNull(repo, "Cannot use null repo");
+        requireNonNull(commit, "Cannot use null commit");
+        requireNonNull(analysisName, "Cannot use null analysis name");
+        return new AnalysisImpl(owner, repo, commit, analysisName);
+    }
+
+    /**
+     * Continuation traces are not linked to an analysis or tracker, so they are aggregated by name under an empty
+     * tracker and sent with an analysisId of 0.
+     */
+    @Override
+    public Trace trace(UUID rootId, UUID parentId, String name) {
+        requireNonNull(rootId, "Cannot use null rootId");
+        requireNonNull(parentId, "Cannot use null traceId");
+        requireNonNull(name, "Cannot use null name");
+        return new TraceImpl(pathRoot(continuations, noAnalysis, "").child(name), null, rootId);
+    }
+
+    /**
+     * The events counted by these metrics are histogram snapshots rather than traces.
+     */
+    @Override
+    public TracingMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * Sends the histograms recorded so far without waiting for the end of the interval.
+     */
+    @Override
+    public CompletableFuture<Void> flush() {
+        try {
+            return CompletableFuture.runAsync(this::sendSnapshots, scheduler);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Tracing client is closed", e));
+        }
+    }
+
+    @Override
+    public void close() throws Exception {
+        closing.closeWithin(Duration.ofMinutes(1).plusSeconds(20));
+    }
+
+    @Override
+    public CompletableFuture<Void> closeAsync(Duration deadline) {
+        return closing.closeAsync(deadline);
+    }
+
+    private void closeWithin(Duration budget) throws Exception {
+        long deadline = System.nanoTime() + budget.toNanos();
+        Lifecycle.removeShutdownHook(shutdownHook);
+        try {
+            scheduler.shutdown();
+            scheduler.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            sendSnapshots();
+            stream.close(deadline - System.nanoTime());
+        } finally {
+            channel.shutdown();
+            if (!channel.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                channel.shutdownNow();
+            }
+            metrics.unregister();
+        }
+    }
+
+    private PathNode pathRoot(ConcurrentHashMap<String, PathNode> roots, TraceStream.AnalysisId analysis,
+                              String tracker) {
+        PathNode root = roots.get(tracker);
+        if (root == null) {
+            root = roots.computeIfAbsent(tracker, t -> {
+                PathNode node = new PathNode(analysis, t);
+                trackers.add(node);
+                return node;
+            });
+        }
+        return root;
+    }
+
+    private void sendSnapshotsSafely() {
+        try {
+            sendSnapshots();
+        } catch (RuntimeException e) {
+            LOG.error("Failed to send trace histograms", e);
+        }
+    }
+
+    /**
+     * Send a snapshot of every histogram that recorded something. A failure to send one does not stop the others,
+     * and the first failure is thrown once all have been tried.
+     */
+    private synchronized void sendSnapshots() {
+        long intervalEnd = System.currentTimeMillis();
+        RuntimeException error = null;
+        Deque<PathNode> pending = new ArrayDeque<>(trackers);
+        while (!pending.isEmpty()) {
+            PathNode node = pending.pop();
+            pending.addAll(node.children.values());
+            if (node.histogram == null) continue;
+            Histogram.Req.Builder req = Histogram.Req.newBuilder();
+            if (!node.histogram.drainTo(req)) continue;
+            if (node.analysis.isFailed()) {
+                metrics.dropped();
+                continue;
+            }
+            long start = node.unsentSince == 0 ? intervalStart : node.unsentSince;
+            if (!node.analysis.isCreated()) {
+                node.histogram.restore(req);
+                node.unsentSince = start;
+                continue;
+            }
+            req.setAnalysisId(node.analysis.get())
+                    .setTracker(node.tracker)
+                    .setIntervalStart(start)
+                    .setIntervalEnd(intervalEnd);
+            addPath(req, node);
+            try {
+                stream.histogram(req.build());
+                node.unsentSince = 0;
+            } catch (RuntimeException e) {
+                node.histogram.restore(req);
+                node.unsentSince = start;
+                if (error == null) error = e;
+                else error.addSuppressed(e);
+            }
+        }
+        intervalStart = intervalEnd;
+        if (error != null) throw error;
+    }
+
+    private static void addPath(Histogram.Req.Builder req, PathNode node) {
+        if (node.parent.histogram != null) addPath(req, node.parent);
+        req.addPath(node.name);
+    }
+
+    /**
+     * A node in the tree of trace paths for a single tracker. The tracker itself is represented by a node with no
+     * histogram, whose children are the root traces.
+     */
+    private static class PathNode {
+        private final TraceStream.AnalysisId analysis;
+        private final String tracker;
+        private final PathNode parent;
+        private final String name;
+        private final LatencyHistogram histogram;
+        private final ConcurrentHashMap<String, PathNode> children = new ConcurrentHashMap<>();
+        // The start of the earliest interval whose durations are still held back, or 0, guarded by sendSnapshots
+        private long unsentSince;
+
+        private PathNode(TraceStream.AnalysisId analysis, String tracker) {
+            this.analysis = analysis;
+            this.tracker = tracker;
+            parent = null;
+            name = tracker;
+            histogram = null;
+        }
+
+        private PathNode(PathNode parent, String name) {
+            analysis = parent.analysis;
+            tracker = parent.tracker;
+            this.parent = parent;
+            this.name = name;
+            histogram = new LatencyHistogram();
+        }
+
+        private PathNode child(String name) {
+            PathNode child = children.get(name);
+            if (child == null) {
+                child = children.computeIfAbsent(name, n -> new PathNode(this, n));
+            }
+            return child;
+        }
+    }
+
+    private class AnalysisImpl implements Analysis {
+
+        private final TraceStream.AnalysisId analysisId = new TraceStream.AnalysisId();
+        private final ConcurrentHashMap<String, PathNode> roots = new ConcurrentHashMap<>();
+
+        private AnalysisImpl(String owner, String repo, String commit, String analysisName) {
+            TracingProto.Analysis.Req req = TracingProto.Analysis.Req.newBuilder()
+                    .setOwner(owner)
+                    .setRepo(repo)
+                    .setCommit(commit)
+                    .setName(analysisName)
+                    .build();
+            tracingServiceStub.create(req, new StreamObserver<TracingProto.Analysis.Res>() {
+                @Override
+                public void onNext(TracingProto.Analysis.Res res) {
+                    analysisId.created(res.getAnalysisId());
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                    analysisId.failed(throwable);
+                    metrics.errorBuffered();
+                }
+
+                @Override
+                public void onCompleted() {
+                }
+            });
+        }
+
+        /**
+         * @throws RuntimeException Once, on the first trace after the analysis failed to be created.
+         */
+        @Override
+        public Trace trace(String name, String tracker, int iteration) {
+            requireNonNull(name, "Cannot use null name");
+            requireNonNull(tracker, "Cannot use null tracker");
+            if (analysisId.claimError()) {
+                metrics.errorsThrown(1);
+                throw new RuntimeException(analysisId.error());
+            }
+            return new TraceImpl(pathRoot(roots, analysisId, tracker).child(name), null, null);
+        }
+    }
+
+    /**
+     * IDs are only generated when requested, since they are never sent.
+     */
+    private static class TraceImpl implements Trace {
+        private final PathNode node;
+        private final TraceImpl root;
+        private final long startNanos;
+        private UUID rootId;
+        private UUID id;
+
+        private TraceImpl(PathNode node, TraceImpl root, UUID rootId) {
+            this.node = node;
+            this.root = root;
+            this.rootId = rootId;
+            startNanos = System.nanoTime();
+        }
+
+        @Override
+        public Trace trace(String name) {
+            requireNonNull(name, "Cannot use null name");
+            return new TraceImpl(node.child(name), root == null ? this : root, null);
+        }
+
+        @Override
+        public Trace data(String data) {
+            requireNonNull(data, "Cannot use null data");
+            return this;
+        }
+
+        @Override
+        public Trace data(Supplier<String> data) {
+            requireNonNull(data, "Cannot use null data");
+            return this;
+        }
+
+        @Override
+        public Trace labels(String... labels) {
+            return this;
+        }
+
+        @Override
+        public Trace end() {
+            node.histogram.record(System.nanoTime() - startNanos);
+            return this;
+        }
+
+        @Override
+        public synchronized UUID getRootId() {
+            if (root != null) return root.getRootId();
+            if (rootId == null) rootId = getId();
+            return rootId;
+        }
+
+        @Override
+        public synchronized UUID getId() {
+            if (id == null) id = UUID.randomUUID();
+            return id;
+        }
+    }
+}
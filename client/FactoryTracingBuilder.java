@@ -0,0 +1,455 @@
+/*
+ * Copyright (C) 2022 Vaticle
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.vaticle.factory.tracing.client;
+
+import io.grpc.ManagedChannel;
+import io.grpc.netty.NettyChannelBuilder;
+import io.grpc.stub.AbstractStub;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.time.Duration;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Configures and creates a {@link FactoryTracing} client. Obtain one from {@link FactoryTracing#builder()}.
+ *
+ * The client connects with TLS over the Netty transport unless told otherwise. Credentials and transport options only
+ * apply when the builder creates the channel itself, that is when a {@link #target(String)} is given rather than a
+ * {@link #channel(ManagedChannel)}. Compression, message size limits and the executor apply to either.
+ */
+public class FactoryTracingBuilder {
+    private static final Logger LOG = LoggerFactory.getLogger(FactoryTracingBuilder.class);
+
+    private String target;
+    private ManagedChannel channel;
+    private FactoryTokenAuthClientInterceptor authClientInterceptor;
+    private boolean plaintext;
+    private String compression;
+    private boolean nativeTransport;
+    private EventLoopGroup eventLoopGroup;
+    private int flowControlWindow;
+    private int maxInboundMessageSize;
+    private int maxOutboundMessageSize;
+    private Executor executor;
+    private long aggregationInterval;
+    private TimeUnit aggregationUnit;
+    private Duration shutdownHookBudget;
+    private int maxPendingEvents = 65536;
+    private int maxUnacknowledgedEvents = 16384;
+    private Duration openTraceTimeout;
+    private int openTraceCapacity;
+    private boolean correlateGcPauses;
+    private boolean measureThreadResources;
+    private int maxDataLength = 256 * 1024;
+    private int maxLabels = 256;
+    private int maxLabelLength = 1024;
+    private int maxEvents = 1024;
+    private int maxAttributes = 256;
+    private int maxValueLength = 1024;
+    private long maxBytesPerSecond;
+
+    FactoryTracingBuilder() {
+    }
+
+    /**
+     * @param uri The URI of your Vaticle Factory server.
+     * @return This builder.
+     */
+    public FactoryTracingBuilder target(String uri) {
+        target = requireNonNull(uri, "Cannot use null uri");
+        return this;
+    }
+
+    /**
+     * Use an existing channel, such as an in-process channel for testing, instead of connecting to a target. The
+     * channel is shut down when the client is closed.
+     *
+     * @param channel The channel to send traces on.
+     * @return This builder.
+     */
+    public FactoryTracingBuilder channel(ManagedChannel channel) {
+        this.channel = requireNonNull(channel, "Cannot use null channel");
+        return this;
+    }
+
+    /**
+     * @param username Your username on the Vaticle Factory server.
+     * @param token    Your API token for the username.
+     * @return This builder.
+     */
+    public FactoryTracingBuilder credentials(String username, String token) {
+        authClientInterceptor = new FactoryTokenAuthClientInterceptor(username, token);
+        return this;
+    }
+
+    /**
+     * Connect without TLS, which is useful for testing the tracing protocol but should not be used in real
+     * applications.
+     *
+     * @return This builder.
+     */
+    public FactoryTracingBuilder usePlaintext() {
+        plaintext = true;
+        return this;
+    }
+
+    /**
+     * Compress every message sent to the server. Trace streams are highly repetitive and compress well, which pays off
+     * on bandwidth-limited links at the cost of some client CPU.
+     *
+     * @param compressorName A compressor known to gRPC, such as "gzip".
+     * @return This builder.
+     */
+    public FactoryTracingBuilder compression(String compressorName) {
+        compression = requireNonNull(compressorName, "Cannot use null compressor");
+        return this;
+    }
+
+    /**
+     * Use the Netty native epoll transport where it is available, falling back to NIO with a warning elsewhere.
+     * Unless an {@link #eventLoopGroup(EventLoopGroup)} is given, a single daemon event loop is shared by all such
+     * clients.
+     *
+     * @return This builder.
+     */
+    public FactoryTracingBuilder nativeTransport() {
+        nativeTransport = true;
+        return this;
+    }
+
+    /**
+     * Run the transport on an event loop group shared with the rest of the application. The group is not shut down
+     * when the client is closed.
+     *
+     * @param eventLoopGroup An epoll or NIO event loop group.
+     * @return This builder.
+     */
+    public FactoryTracingBuilder eventLoopGroup(EventLoopGroup eventLoopGroup) {
+        this.eventLoopGroup = requireNonNull(eventLoopGroup, "Cannot use null event loop group");
+        return this;
+    }
+
+    /**
+     * @param bytes The initial HTTP/2 flow control window.
+     * @return This builder.
+     */
+    public FactoryTracingBuilder flowControlWindow(int bytes) {
+        flowControlWindow = positive(bytes);
+        return this;
+    }
+
+    /**
+     * @param bytes The maximum size of a message received from the server.
+     * @return This builder.
+     */
+    public FactoryTracingBuilder maxInboundMessageSize(int bytes) {
+        maxInboundMessageSize = positive(bytes);
+        return this;
+    }
+
+    /**
+     * @param bytes The maximum size of a message sent to the server.
+     * @return This builder.
+     */
+    public FactoryTracingBuilder maxOutboundMessageSize(int bytes) {
+        maxOutboundMessageSize = positive(bytes);
+        return this;
+    }
+
+    /**
+     * @param executor The executor to run gRPC callbacks, such as server responses, on.
+     * @return This builder.
+     */
+    public FactoryTracingBuilder executor(Executor executor) {
+        this.executor = requireNonNull(executor, "Cannot use null executor");
+        return this;
+    }
+
+    /**
+     * Aggregate traces into latency histograms on the client instead of sending them individually. See
+     * {@link FactoryTracingAggregating}.
+     *
+     * @param interval How often histogram snapshots are sent.
+     * @param unit     The time unit of the interval.
+     * @return This builder.
+     */
+    public FactoryTracingBuilder aggregating(long interval, TimeUnit unit) {
+        aggregationInterval = positive(interval);
+        aggregationUnit = requireNonNull(unit, "Cannot use null unit");
+        return this;
+    }
+
+    /**
+     * Events of traces started before the server has created their analysis are buffered until it has. Once this
+     * many events are buffered, further events are dropped.
+     *
+     * @param events The maximum number of events to buffer.
+     * @return This builder.
+     */
+    public FactoryTracingBuilder maxPendingEvents(int events) {
+        maxPendingEvents = positive(events);
+        return this;
+    }
+
+    /**
+     * Events written to the server are kept until it acknowledges them, so that they can be written again if the
+     * stream fails. Once this many events are unacknowledged, the oldest are forgotten and would be lost with the
+     * stream.
+     *
+     * @param events The maximum number of unacknowledged events to keep.
+     * @return This builder.
+     */
+    public FactoryTracingBuilder maxUnacknowledgedEvents(int events) {
+        maxUnacknowledgedEvents = positive(events);
+        return this;
+    }
+
+    /**
+     * Limit the payloads of trace events, so that an accidentally huge payload cannot stall the stream for every
+     * thread. Longer data and labels are truncated and end with a marker saying how many characters were cut, and
+     * labels beyond the maximum count are replaced by a single marker label. The number of truncated payloads is
+     * reported by {@link TracingMetrics#getPayloadsTruncated()}. By default data is limited to 256K characters, and
+     * each labels event to 256 labels of 1024 characters each.
+     *
+     * @param maxDataLength The maximum number of characters of data sent for a trace.
+     * @param maxLabels The maximum number of labels sent in a single labels event.
+     * @param maxLabelLength The maximum number of characters of each label.
+     * @return This builder.
+     */
+    public FactoryTracingBuilder limitPayloads(int maxDataLength, int maxLabels, int maxLabelLength) {
+        this.maxDataLength = positive(maxDataLength);
+        this.maxLabels = positive(maxLabels);
+        this.maxLabelLength = positive(maxLabelLength);
+        return this;
+    }
+
+    /**
+     * Limit what is sent with the end of each trace: its events, counters and attributes. Those beyond the maximum
+     * count are left out, keeping the first recorded, and are counted by
+     * {@link TracingMetrics#getRecordEntriesDropped()}. Longer event and counter names, attribute keys and string
+     * values are truncated with a marker like data, and longer byte values are cut short. Each end event that did not
+     * fit is counted by {@link TracingMetrics#getPayloadsTruncated()}. By default a trace sends up to 1024 events, 256
+     * counters and 256 attributes, with names and values of up to 1024 characters or bytes.
+     *
+     * @param maxEvents The maximum number of events sent with the end of a trace.
+     * @param maxAttributes The maximum number of attributes, and separately of counters, sent with the end of a trace.
+     * @param maxValueLength The maximum number of characters of each name and string value, or bytes of each byte value.
+     * @return This builder.
+     */
+    public FactoryTracingBuilder limitRecords(int maxEvents, int maxAttributes, int maxValueLength) {
+        this.maxEvents = positive(maxEvents);
+        this.maxAttributes = positive(maxAttributes);
+        this.maxValueLength = positive(maxValueLength);
+        return this;
+    }
+
+    /**
+     * Limit the serialized size of the events written to the server each second, across all threads of the client.
+     * The budget is applied per root trace: once it is used up, new root traces are not sent until the following
+     * seconds have made up for the excess, and are counted by {@link TracingMetrics#getTracesRejected()}. Root traces
+     * already started are still sent whole. Unlimited by default.
+     *
+     * @param bytes The maximum number of bytes written per second.
+     * @return This builder.
+     */
+    public FactoryTracingBuilder maxBytesPerSecond(long bytes) {
+        maxBytesPerSecond = positive(bytes);
+        return this;
+    }
+
+    /**
+     * Track the traces that have started but not ended, and end the ones still open after the timeout on behalf of
+     * the application, marked with the attribute {@code abandoned}. The number of abandoned traces of each name is
+     * reported by {@link TracingMetrics#getTracesAbandoned()}. Traces started while the table is full are not
+     * tracked. Not supported by aggregating clients, which do not hold on to open traces.
+     *
+     * @param timeout How long a trace may stay open before it is expired.
+     * @param capacity The number of open traces that can be tracked.
+     * @return This builder.
+     */
+    public FactoryTracingBuilder expireOpenTraces(Duration timeout, int capacity) {
+        requireNonNull(timeout, "Cannot use null timeout");
+        positive(timeout.toNanos());
+        openTraceTimeout = timeout;
+        openTraceCapacity = positive(capacity);
+        return this;
+    }
+
+    /**
+     * Show garbage collections in the traces they slowed down: after each collection, a child trace named {@code GC}
+     * covering the collection and labelled with the collector, action and cause is added to every root trace that
+     * was open while it ran. Not supported by aggregating clients.
+     *
+     * @return This builder.
+     */
+    public FactoryTracingBuilder correlateGcPauses() {
+        correlateGcPauses = true;
+        return this;
+    }
+
+    /**
+     * Measure the CPU time and allocated bytes of the thread that runs each trace, and send them with the end of the
+     * trace together with the thread ID, to tell computation from waiting. Traces that end on a different thread than
+     * they started on are not measured. Thread CPU time measurement is turned on in the JVM if it is supported but
+     * off. Not supported by aggregating clients.
+     *
+     * @return This builder.
+     */
+    public FactoryTracingBuilder measureThreadResources() {
+        measureThreadResources = true;
+        return this;
+    }
+
+    /**
+     * Close the client from a JVM shutdown hook if it is still open when the JVM exits, draining outstanding events
+     * for at most the given time.
+     *
+     * @param budget The maximum time the shutdown hook may spend closing the client.
+     * @return This builder.
+     */
+    public FactoryTracingBuilder shutdownHook(Duration budget) {
+        shutdownHookBudget = requireNonNull(budget, "Cannot use null budget");
+        return this;
+    }
+
+    /**
+     * @return A client connected to the configured server.
+     */
+    public FactoryTracing build() {
+        if (channel == null && target == null) {
+            throw new IllegalStateException("Either a target or a channel must be set");
+        }
+        ManagedChannel managedChannel = channel != null ? channel : buildChannel();
+        if (aggregationInterval > 0) {
+            return new FactoryTracingAggregating(managedChannel, this);
+        } else {
+            return new FactoryTracingStandard(managedChannel, this);
+        }
+    }
+
+    <S extends AbstractStub<S>> S configure(S stub) {
+        if (compression != null) stub = stub.withCompression(compression);
+        if (maxInboundMessageSize > 0) stub = stub.withMaxInboundMessageSize(maxInboundMessageSize);
+        if (maxOutboundMessageSize > 0) stub = stub.withMaxOutboundMessageSize(maxOutboundMessageSize);
+        if (executor != null) stub = stub.withExecutor(executor);
+        return stub;
+    }
+
+    long aggregationInterval() {
+        return aggregationInterval;
+    }
+
+    TimeUnit aggregationUnit() {
+        return aggregationUnit;
+    }
+
+    int maxPendingEvents() {
+        return maxPendingEvents;
+    }
+
+    int maxUnacknowledgedEvents() {
+        return maxUnacknowledgedEvents;
+    }
+
+    PayloadLimits payloadLimits(TracingMetrics metrics) {
+        return new PayloadLimits(maxDataLength, maxLabels, maxLabelLength, maxEvents, maxAttributes, maxValueLength,
+                                 maxBytesPerSecond, metrics);
+    }
+
+    @Nullable
+    Duration openTraceTimeout() {
+        return openTraceTimeout;
+    }
+
+    int openTraceCapacity() {
+        return openTraceCapacity;
+    }
+
+    boolean correlatesGcPauses() {
+        return correlateGcPauses;
+    }
+
+    boolean measuresThreadResources() {
+        return measureThreadResources;
+    }
+
+    @Nullable
+    Duration shutdownHookBudget() {
+        return shutdownHookBudget;
+    }
+
+    /**
+     * Connect to the target with the connection settings of this builder, for tools that speak the tracing protocol
+     * directly rather than through a client.
+     *
+     * @return A new channel, which the caller must shut down.
+     */
+    public ManagedChannel buildChannel() {
+        NettyChannelBuilder channelBuilder = NettyChannelBuilder.forTarget(target)
+                .keepAliveTime(1, TimeUnit.MINUTES)
+                .keepAliveWithoutCalls(true);
+        if (plaintext) channelBuilder.usePlaintext();
+        else channelBuilder.useTransportSecurity();
+        EventLoopGroup group = eventLoopGroup;
+        if (group == null && nativeTransport) {
+            if (Epoll.isAvailable()) {
+                group = SharedEpollEventLoop.GROUP;
+            } else {
+                LOG.warn("The native transport was requested but is unavailable, so NIO is used instead",
+                         Epoll.unavailabilityCause());
+            }
+        }
+        if (group != null) {
+            channelBuilder.eventLoopGroup(group)
+                    .channelType(group instanceof EpollEventLoopGroup ? EpollSocketChannel.class : NioSocketChannel.class);
+        }
+        if (flowControlWindow > 0) channelBuilder.flowControlWindow(flowControlWindow);
+        if (maxInboundMessageSize > 0) channelBuilder.maxInboundMessageSize(maxInboundMessageSize);
+        if (executor != null) channelBuilder.executor(executor);
+        if (authClientInterceptor != null) channelBuilder.intercept(authClientInterceptor);
+        return channelBuilder.build();
+    }
+
+    private static <N extends Number> N positive(N value) {
+        if (value.longValue() <= 0) throw new IllegalArgumentException("Expected a positive value but got " + value);
+        return value;
+    }
+
+    /**
+     * Lazily created the first time a client asks for the native transport without supplying its own event loop group.
+     */
+    private static class SharedEpollEventLoop {
+        private static final EventLoopGroup GROUP =
+                new EpollEventLoopGroup(1, new DefaultThreadFactory("factory-tracing-epoll", true));
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2022 Vaticle
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.vaticle.factory.tracing.client;
+
+import com.vaticle.factory.tracing.client.FactoryTracing.Trace;
+import com.vaticle.factory.tracing.client.FactoryTracingThreadStatic.ThreadTrace;
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.ForwardingClientCall;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A GRPC {@link ClientInterceptor} that sends the IDs of the current {@link ThreadTrace} with every rpc, so that a
+ * server using {@link FactoryTracingServerInterceptor} can continue the trace in its own process.
+ *
+ * The root ID and trace ID are sent as 32 bytes of binary metadata, in the same byte order as the protocol. Calls made
+ * while the thread has no trace are sent unchanged.
+ */
+public class FactoryTracingClientInterceptor implements ClientInterceptor {
+
+    static final Metadata.Key<byte[]> TRACE_CONTEXT =
+            Metadata.Key.of("factory-trace-bin", Metadata.BINARY_BYTE_MARSHALLER);
+
+    @Override
+    public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(MethodDescriptor<ReqT, RespT> methodDescriptor, CallOptions callOptions, Channel channel) {
+
+        return new ForwardingClientCall.SimpleForwardingClientCall<ReqT, RespT>(channel.newCall(methodDescriptor, callOptions)) {
+            @Override
+            public void start(Listener<RespT> listener, Metadata metadata) {
+                ThreadTrace trace = FactoryTracingThreadStatic.currentThreadTrace();
+                if (trace != null && (trace.getIdMostSignificantBits() != 0 || trace.getIdLeastSignificantBits() != 0)) {
+                    metadata.put(TRACE_CONTEXT, encode(trace));
+                }
+                super.start(listener, metadata);
+            }
+        };
+    }
+
+    static byte[] encode(Trace trace) {
+        return ByteBuffer.allocate(32)
+                .putLong(trace.getRootIdMostSignificantBits())
+                .putLong(trace.getRootIdLeastSignificantBits())
+                .putLong(trace.getIdMostSignificantBits())
+                .putLong(trace.getIdLeastSignificantBits())
+                .array();
+    }
+}
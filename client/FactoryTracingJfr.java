@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2022 Vaticle
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.vaticle.factory.tracing.client;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A FactoryTracing that records every trace as a JDK Flight Recorder event instead of sending it over the network.
+ * Events are written to the recording's thread-local buffers, so tracing costs little more than the profiling already
+ * running, and the traces line up with the rest of the recording.
+ *
+ * Nothing is recorded unless a recording with the {@value #TRACE_EVENT} event enabled is running. A recording can be
+ * sent to a Factory server afterwards with {@code //tool:jfr-replay}. Attributes, counters and events of a trace are
+ * not recorded.
+ */
+public class FactoryTracingJfr implements FactoryTracing {
+    public static final String ANALYSIS_EVENT = "com.vaticle.factory.tracing.Analysis";
+    public static final String TRACE_EVENT = "com.vaticle.factory.tracing.Trace";
+
+    private static final AtomicLong ANALYSIS_COUNT = new AtomicLong();
+
+    @Override
+    public Analysis analysis(String owner, String repo, String commit, String analysisName) {
+        requireNonNull(owner, "Cannot use null owner");
+        requireNonNull(repo, "Cannot use null repo");
+        requireNonNull(commit, "Cannot use null commit");
+        requireNonNull(analysisName, "Cannot use null analysis name");
+        AnalysisEvent event = new AnalysisEvent();
+        event.analysis = ANALYSIS_COUNT.incrementAndGet();
+        event.owner = owner;
+        event.repo = repo;
+        event.commit = commit;
+        event.name = analysisName;
+        event.commit();
+        return new AnalysisImpl(event.analysis);
+    }
+
+    @Override
+    public Trace trace(UUID rootId, UUID parentId, String name) {
+        requireNonNull(rootId, "Cannot use null rootId");
+        requireNonNull(parentId, "Cannot use null traceId");
+        requireNonNull(name, "Cannot use null name");
+        return new TraceImpl(rootId, parentId, name);
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Split the labels field of a recorded trace event, in which each label is prefixed with its length and a colon so
+     * that labels may contain any character.
+     *
+     * @param encoded The labels field, which may be null if the trace had no labels.
+     * @return The labels, in the order they were added.
+     */
+    public static List<String> decodeLabels(@Nullable String encoded) {
+        List<String> labels = new ArrayList<>();
+        if (encoded == null) return labels;
+        int index = 0;
+        while (index < encoded.length()) {
+            int colon = encoded.indexOf(':', index);
+            if (colon < 0) throw new IllegalArgumentException("Labels are missing a length prefix: " + encoded);
+            int end = colon + 1 + Integer.parseInt(encoded.substring(index, colon));
+            labels.add(encoded.substring(colon + 1, end));
+            index = end;
+        }
+        return labels;
+    }
+
+    private static void encodeLabel(StringBuilder encoded, String label) {
+        encoded.append(label.length()).append(':').append(label);
+    }
+
+    private static class AnalysisImpl implements Analysis {
+        private final long analysis;
+
+        private AnalysisImpl(long analysis) {
+            this.analysis = analysis;
+        }
+
+        @Override
+        public Trace trace(String name, String tracker, int iteration) {
+            requireNonNull(name, "Cannot use null name");
+            requireNonNull(tracker, "Cannot use null tracker");
+            return new TraceImpl(analysis, name, tracker, iteration);
+        }
+    }
+
+    /**
+     * IDs are random like those of {@link FactoryTracingStandard}, but only generated when the trace is committed to a
+     * recording or they are requested, so that traces made while no recording is running cost no random numbers.
+     */
+    private static class TraceImpl implements Trace {
+        private final TraceEvent event = new TraceEvent();
+        // The parent within this client, which the root ID is taken from, or null for roots and continued traces
+        private final TraceImpl parent;
+        private long idMost;
+        private long idLeast;
+        private boolean rootIdResolved;
+        private long rootIdMost;
+        private long rootIdLeast;
+        private StringBuilder labels;
+
+        private TraceImpl(long analysis, String name, @Nullable String tracker, int iteration) {
+            parent = null;
+            event.analysis = analysis;
+            event.name = name;
+            event.tracker = tracker;
+            event.iteration = iteration;
+            event.begin();
+        }
+
+        private TraceImpl(TraceImpl parent, String name) {
+            this.parent = parent;
+            event.analysis = parent.event.analysis;
+            event.name = name;
+            event.tracker = parent.event.tracker;
+            event.iteration = parent.event.iteration;
+            event.begin();
+        }
+
+        private TraceImpl(UUID rootId, UUID parentId, String name) {
+            parent = null;
+            rootIdResolved = true;
+            rootIdMost = rootId.getMostSignificantBits();
+            rootIdLeast = rootId.getLeastSignificantBits();
+            event.parentIdMost = parentId.getMostSignificantBits();
+            event.parentIdLeast = parentId.getLeastSignificantBits();
+            event.name = name;
+            event.begin();
+        }
+
+        @Override
+        public Trace trace(String name) {
+            requireNonNull(name, "Cannot use null name");
+            return new TraceImpl(this, name);
+        }
+
+        @Override
+        public Trace data(String data) {
+            requireNonNull(data, "Cannot use null data");
+            event.data = data;
+            return this;
+        }
+
+        @Override
+        public Trace data(Supplier<String> data) {
+            requireNonNull(data, "Cannot use null data");
+            if (event.isEnabled()) event.data = requireNonNull(data.get(), "Cannot use null data");
+            return this;
+        }
+
+        @Override
+        public Trace labels(String... labels) {
+            if (!event.isEnabled()) return this;
+            if (this.labels == null) this.labels = new StringBuilder();
+            for (String label : labels) {
+                encodeLabel(this.labels, requireNonNull(label, "Cannot use null label"));
+            }
+            return this;
+        }
+
+        @Override
+        public Trace end() {
+            event.end();
+            if (event.shouldCommit()) {
+                event.idMost = getIdMostSignificantBits();
+                event.idLeast = getIdLeastSignificantBits();
+                event.rootIdMost = getRootIdMostSignificantBits();
+                event.rootIdLeast = getRootIdLeastSignificantBits();
+                if (parent != null) {
+                    event.parentIdMost = parent.getIdMostSignificantBits();
+                    event.parentIdLeast = parent.getIdLeastSignificantBits();
+                }
+                if (labels != null) event.labels = labels.toString();
+                event.commit();
+            }
+            return this;
+        }
+
+        @Override
+        public UUID getRootId() {
+            return new UUID(getRootIdMostSignificantBits(), getRootIdLeastSignificantBits());
+        }
+
+        @Override
+        public UUID getId() {
+            return new UUID(getIdMostSignificantBits(), getIdLeastSignificantBits());
+        }
+
+        @Override
+        public synchronized long getRootIdMostSignificantBits() {
+            resolveRootId();
+            return rootIdMost;
+        }
+
+        @Override
+        public synchronized long getRootIdLeastSignificantBits() {
+            resolveRootId();
+            return rootIdLeast;
+        }
+
+        @Override
+        public synchronized long getIdMostSignificantBits() {
+            generateId();
+            return idMost;
+        }
+
+        @Override
+        public synchronized long getIdLeastSignificantBits() {
+            generateId();
+            return idLeast;
+        }
+
+        private void generateId() {
+            assert Thread.holdsLock(this);
+            // Random least significant bits always have the variant bit set, so are never 0
+            if (idLeast != 0) return;
+            idMost = FactoryTracingStandard.randomMostSignificantBits();
+            idLeast = FactoryTracingStandard.randomLeastSignificantBits();
+        }
+
+        private void resolveRootId() {
+            assert Thread.holdsLock(this);
+            if (rootIdResolved) return;
+            if (parent != null) {
+                rootIdMost = parent.getRootIdMostSignificantBits();
+                rootIdLeast = parent.getRootIdLeastSignificantBits();
+            } else {
+                generateId();
+                rootIdMost = idMost;
+                rootIdLeast = idLeast;
+            }
+            rootIdResolved = true;
+        }
+    }
+
+    @Name(ANALYSIS_EVENT)
+    @Label("Analysis")
+    @Category("Vaticle Factory")
+    @Description("A performance analysis that traces belong to")
+    @StackTrace(false)
+    static class AnalysisEvent extends Event {
+        @Label("Analysis")
+        @Description("Number of the analysis within the recording")
+        long analysis;
+
+        @Label("Owner")
+        String owner;
+
+        @Label("Repository")
+        String repo;
+
+        @Label("Commit")
+        String commit;
+
+        @Label("Name")
+        String name;
+    }
+
+    @Name(TRACE_EVENT)
+    @Label("Trace")
+    @Category("Vaticle Factory")
+    @Description("A trace, from its start to its end")
+    @StackTrace(false)
+    static class TraceEvent extends Event {
+        @Label("Analysis")
+        @Description("Number of the analysis within the recording, which child traces repeat from their root, "
+                + "0 for traces continued from another process")
+        long analysis;
+
+        @Label("Root ID (most significant bits)")
+        long rootIdMost;
+
+        @Label("Root ID (least significant bits)")
+        long rootIdLeast;
+
+        @Label("ID (most significant bits)")
+        long idMost;
+
+        @Label("ID (least significant bits)")
+        long idLeast;
+
+        @Label("Parent ID (most significant bits)")
+        @Description("0 for root traces")
+        long parentIdMost;
+
+        @Label("Parent ID (least significant bits)")
+        @Description("0 for root traces")
+        long parentIdLeast;
+
+        @Label("Name")
+        String name;
+
+        @Label("Tracker")
+        String tracker;
+
+        @Label("Iteration")
+        int iteration;
+
+        @Label("Labels")
+        @Description("Labels, each prefixed with its length and a colon")
+        String labels;
+
+        @Label("Data")
+        String data;
+    }
+}
@@ -22,6 +22,7 @@
 package com.vaticle.factory.tracing.client;
 
 import java.util.UUID;
+import java.util.function.Supplier;
 
 /**
  * A simple no-operation FactoryTracing.
@@ -70,11 +71,21 @@ public class FactoryTracingNoOp implements FactoryTracing {
             return LazyHolder.TRACE;
         }
 
+        @Override
+        public Trace data(Supplier<String> data) {
+            return LazyHolder.TRACE;
+        }
+
         @Override
         public Trace labels(String... labels) {
             return LazyHolder.TRACE;
         }
 
+        @Override
+        public Trace labels(LabelSet labelSet) {
+            return LazyHolder.TRACE;
+        }
+
         @Override
         public Trace end() {
             return LazyHolder.TRACE;
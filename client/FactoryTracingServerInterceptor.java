@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2022 Vaticle
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.vaticle.factory.tracing.client;
+
+import com.vaticle.factory.tracing.client.FactoryTracing.Trace;
+import com.vaticle.factory.tracing.client.FactoryTracingThreadStatic.ThreadTrace;
+import io.grpc.ForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+
+import java.nio.ByteBuffer;
+
+import static com.vaticle.factory.tracing.client.FactoryTracingClientInterceptor.TRACE_CONTEXT;
+
+/**
+ * A GRPC {@link ServerInterceptor} that continues the trace sent by {@link FactoryTracingClientInterceptor} around
+ * every rpc handled by the server, using the global client of {@link FactoryTracingThreadStatic}.
+ *
+ * The continuation trace is named after the full method name and ends when the call completes or is cancelled. It is
+ * the current {@link ThreadTrace} whenever the handler is called, on whichever thread that happens, so traces the
+ * handler opens with {@link FactoryTracingThreadStatic#traceOnThread(String)} become its children.
+ */
+public class FactoryTracingServerInterceptor implements ServerInterceptor {
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata metadata, ServerCallHandler<ReqT, RespT> next) {
+        byte[] context = metadata.get(TRACE_CONTEXT);
+        if (context == null || context.length != 32 || !FactoryTracingThreadStatic.isTracingEnabled()) {
+            return next.startCall(call, metadata);
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(context);
+        Trace trace = FactoryTracingThreadStatic.getFactoryTracing()
+                .trace(buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong(),
+                       call.getMethodDescriptor().getFullMethodName());
+
+        ServerCall.Listener<ReqT> listener;
+        try (ThreadTrace ignored = FactoryTracingThreadStatic.attachTraceOnThread(trace)) {
+            listener = next.startCall(call, metadata);
+        } catch (RuntimeException e) {
+            trace.end();
+            throw e;
+        }
+        return new TracedListener<>(listener, trace);
+    }
+
+    private static class TracedListener<ReqT> extends ForwardingServerCallListener.SimpleForwardingServerCallListener<ReqT> {
+        private final Trace trace;
+
+        private TracedListener(ServerCall.Listener<ReqT> delegate, Trace trace) {
+            super(delegate);
+            this.trace = trace;
+        }
+
+        @Override
+        public void onMessage(ReqT message) {
+            try (ThreadTrace ignored = FactoryTracingThreadStatic.attachTraceOnThread(trace)) {
+                super.onMessage(message);
+            }
+        }
+
+        @Override
+        public void onHalfClose() {
+            try (ThreadTrace ignored = FactoryTracingThreadStatic.attachTraceOnThread(trace)) {
+                super.onHalfClose();
+            }
+        }
+
+        @Override
+        public void onReady() {
+            try (ThreadTrace ignored = FactoryTracingThreadStatic.attachTraceOnThread(trace)) {
+                super.onReady();
+            }
+        }
+
+        @Override
+        public void onCancel() {
+            try (ThreadTrace ignored = FactoryTracingThreadStatic.attachTraceOnThread(trace)) {
+                super.onCancel();
+            } finally {
+                trace.end();
+            }
+        }
+
+        @Override
+        public void onComplete() {
+            try (ThreadTrace ignored = FactoryTracingThreadStatic.attachTraceOnThread(trace)) {
+                super.onComplete();
+            } finally {
+                trace.end();
+            }
+        }
+    }
+}
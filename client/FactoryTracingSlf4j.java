@@ -24,22 +24,44 @@ package com.vaticle.factory.tracing.client;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.time.Duration;
 import java.time.Instant;
 import java.util.Arrays;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
 
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Decorates a FactoryTracing with Slf4j logging at the TRACE level, in one of two modes.
+ *
+ * By default every call is logged as it happens. In completion mode, a single line is logged when each trace ends,
+ * carrying its ids, duration, labels and data. Completion mode measures durations with {@link System#nanoTime()} and
+ * only formats the line if it is actually written, which makes it cheap enough to leave on in loaded services.
+ */
 public class FactoryTracingSlf4j implements FactoryTracing {
     private static final Logger LOG = LoggerFactory.getLogger(FactoryTracingSlf4j.class);
 
     private final FactoryTracing innerTracing;
+    private final boolean completion;
 
-    private FactoryTracingSlf4j(FactoryTracing inner) {
+    private FactoryTracingSlf4j(FactoryTracing inner, boolean completion) {
         innerTracing = inner;
+        this.completion = completion;
     }
 
     static FactoryTracing wrapIfLoggingEnabled(FactoryTracing inner) {
         if (LOG.isTraceEnabled()) {
-            return new FactoryTracingSlf4j(inner);
+            return new FactoryTracingSlf4j(inner, false);
+        } else {
+            return inner;
+        }
+    }
+
+    static FactoryTracing wrapForCompletionIfLoggingEnabled(FactoryTracing inner) {
+        if (LOG.isTraceEnabled()) {
+            return new FactoryTracingSlf4j(inner, true);
         } else {
             return inner;
         }
@@ -47,6 +69,9 @@ public class FactoryTracingSlf4j implements FactoryTracing {
 
     @Override
     public Trace trace(UUID rootId, UUID parentId, String name) {
+        if (completion) {
+            return new CompletionTraceImpl(innerTracing.trace(rootId, parentId, name), name);
+        }
         if (LOG.isTraceEnabled()) {
             LOG.trace("trace: {} {} {} {}", rootId, parentId, name, Instant.now());
         }
@@ -56,12 +81,34 @@ public class FactoryTracingSlf4j implements FactoryTracing {
     @Override
     public Analysis analysis(String owner, String repo, String commit, String name) {
         LOG.trace("analysis: {} {} {} {}", owner, repo, commit, name);
-        return new AnalysisImpl(innerTracing.analysis(owner, repo, commit, name));
+        return new AnalysisImpl(innerTracing.analysis(owner, repo, commit, name), completion);
     }
 
     @Override
     public FactoryTracing withLogging() {
-        return this;
+        return completion ? wrapIfLoggingEnabled(innerTracing) : this;
+    }
+
+    @Override
+    public FactoryTracing withCompletionLogging() {
+        return completion ? this : wrapForCompletionIfLoggingEnabled(innerTracing);
+    }
+
+    @Override
+    public TracingMetrics metrics() {
+        return innerTracing.metrics();
+    }
+
+    @Override
+    public CompletableFuture<Void> flush() {
+        LOG.trace("flush");
+        return innerTracing.flush();
+    }
+
+    @Override
+    public CompletableFuture<Void> closeAsync(Duration deadline) {
+        LOG.trace("closeAsync: {}", deadline);
+        return innerTracing.closeAsync(deadline);
     }
 
     @Override
@@ -94,14 +141,70 @@ public class FactoryTracingSlf4j implements FactoryTracing {
             return wrapIfNecessary(innerTrace.data(data));
         }
 
+        @Override
+        public Trace data(Supplier<String> data) {
+            LazyData lazyData = new LazyData(data);
+            LOG.trace("trace.data: {} {}", name, lazyData);
+            return wrapIfNecessary(innerTrace.data(lazyData));
+        }
+
         @Override
         public Trace labels(String... labels) {
             if (LOG.isTraceEnabled()) {
-                LOG.trace("trace.labels: {} {}", name, String.join(", ", Arrays.asList(labels)));
+                LOG.trace("trace.labels: {} {}", name, new Labels(labels));
             }
             return wrapIfNecessary(innerTrace.labels(labels));
         }
 
+        @Override
+        public Trace labels(LabelSet labelSet) {
+            LOG.trace("trace.labels: {} {}", name, labelSet);
+            return wrapIfNecessary(innerTrace.labels(labelSet));
+        }
+
+        @Override
+        public Trace attribute(String key, long value) {
+            LOG.trace("trace.attribute: {} {} {}", name, key, value);
+            return wrapIfNecessary(innerTrace.attribute(key, value));
+        }
+
+        @Override
+        public Trace attribute(String key, double value) {
+            LOG.trace("trace.attribute: {} {} {}", name, key, value);
+            return wrapIfNecessary(innerTrace.attribute(key, value));
+        }
+
+        @Override
+        public Trace attribute(String key, boolean value) {
+            LOG.trace("trace.attribute: {} {} {}", name, key, value);
+            return wrapIfNecessary(innerTrace.attribute(key, value));
+        }
+
+        @Override
+        public Trace attribute(String key, byte[] value) {
+            requireNonNull(value, "Cannot use null value");
+            LOG.trace("trace.attribute: {} {} {} bytes", name, key, value.length);
+            return wrapIfNecessary(innerTrace.attribute(key, value));
+        }
+
+        @Override
+        public Trace attribute(String key, String value) {
+            LOG.trace("trace.attribute: {} {} {}", name, key, value);
+            return wrapIfNecessary(innerTrace.attribute(key, value));
+        }
+
+        @Override
+        public Trace count(String counter, long delta) {
+            LOG.trace("trace.count: {} {} {}", name, counter, delta);
+            return wrapIfNecessary(innerTrace.count(counter, delta));
+        }
+
+        @Override
+        public Trace event(String event) {
+            LOG.trace("trace.event: {} {}", name, event);
+            return wrapIfNecessary(innerTrace.event(event));
+        }
+
         @Override
         public Trace end() {
             if (LOG.isTraceEnabled()) {
@@ -120,21 +223,226 @@ public class FactoryTracingSlf4j implements FactoryTracing {
             return innerTrace.getId();
         }
 
+        @Override
+        public long getRootIdMostSignificantBits() {
+            return innerTrace.getRootIdMostSignificantBits();
+        }
+
+        @Override
+        public long getRootIdLeastSignificantBits() {
+            return innerTrace.getRootIdLeastSignificantBits();
+        }
+
+        @Override
+        public long getIdMostSignificantBits() {
+            return innerTrace.getIdMostSignificantBits();
+        }
+
+        @Override
+        public long getIdLeastSignificantBits() {
+            return innerTrace.getIdLeastSignificantBits();
+        }
+
         private TraceImpl wrapIfNecessary(Trace returnedTrace) {
             return returnedTrace == innerTrace ? this : new TraceImpl(returnedTrace, name);
         }
     }
 
+    private static class CompletionTraceImpl implements Trace {
+        private static final String[] NO_LABELS = new String[0];
+
+        private final Trace innerTrace;
+        private final String name;
+        private final long startNanos;
+        private String[] labels = NO_LABELS;
+        private Object data;
+
+        private CompletionTraceImpl(Trace innerTrace, String name) {
+            this.innerTrace = innerTrace;
+            this.name = name;
+            startNanos = System.nanoTime();
+        }
+
+        @Override
+        public Trace trace(String name) {
+            return new CompletionTraceImpl(innerTrace.trace(name), name);
+        }
+
+        @Override
+        public Trace data(String data) {
+            this.data = data;
+            return wrapIfNecessary(innerTrace.data(data));
+        }
+
+        @Override
+        public Trace data(Supplier<String> data) {
+            LazyData lazyData = new LazyData(data);
+            this.data = lazyData;
+            return wrapIfNecessary(innerTrace.data(lazyData));
+        }
+
+        @Override
+        public Trace labels(String... labels) {
+            // The caller may reuse the array before the trace ends, so the first one is copied rather than kept
+            appendLabels(this.labels == NO_LABELS ? labels.clone() : labels);
+            return wrapIfNecessary(innerTrace.labels(labels));
+        }
+
+        @Override
+        public Trace labels(LabelSet labelSet) {
+            // A LabelSet never changes, so its array can be kept
+            appendLabels(labelSet.array());
+            return wrapIfNecessary(innerTrace.labels(labelSet));
+        }
+
+        @Override
+        public Trace attribute(String key, long value) {
+            return wrapIfNecessary(innerTrace.attribute(key, value));
+        }
+
+        @Override
+        public Trace attribute(String key, double value) {
+            return wrapIfNecessary(innerTrace.attribute(key, value));
+        }
+
+        @Override
+        public Trace attribute(String key, boolean value) {
+            return wrapIfNecessary(innerTrace.attribute(key, value));
+        }
+
+        @Override
+        public Trace attribute(String key, byte[] value) {
+            return wrapIfNecessary(innerTrace.attribute(key, value));
+        }
+
+        @Override
+        public Trace attribute(String key, String value) {
+            return wrapIfNecessary(innerTrace.attribute(key, value));
+        }
+
+        @Override
+        public Trace count(String counter, long delta) {
+            return wrapIfNecessary(innerTrace.count(counter, delta));
+        }
+
+        @Override
+        public Trace event(String event) {
+            return wrapIfNecessary(innerTrace.event(event));
+        }
+
+        @Override
+        public Trace end() {
+            Trace returnedTrace = innerTrace.end();
+            if (LOG.isTraceEnabled()) {
+                LOG.trace("trace.complete: name={} id={} rootId={} durationNanos={} labels=[{}] data={}",
+                          name, innerTrace.getId(), innerTrace.getRootId(), System.nanoTime() - startNanos,
+                          new Labels(labels), data);
+            }
+            return wrapIfNecessary(returnedTrace);
+        }
+
+        @Override
+        public UUID getRootId() {
+            return innerTrace.getRootId();
+        }
+
+        @Override
+        public UUID getId() {
+            return innerTrace.getId();
+        }
+
+        @Override
+        public long getRootIdMostSignificantBits() {
+            return innerTrace.getRootIdMostSignificantBits();
+        }
+
+        @Override
+        public long getRootIdLeastSignificantBits() {
+            return innerTrace.getRootIdLeastSignificantBits();
+        }
+
+        @Override
+        public long getIdMostSignificantBits() {
+            return innerTrace.getIdMostSignificantBits();
+        }
+
+        @Override
+        public long getIdLeastSignificantBits() {
+            return innerTrace.getIdLeastSignificantBits();
+        }
+
+        private void appendLabels(String[] labels) {
+            if (this.labels == NO_LABELS) {
+                this.labels = labels;
+            } else {
+                String[] appended = Arrays.copyOf(this.labels, this.labels.length + labels.length);
+                System.arraycopy(labels, 0, appended, this.labels.length, labels.length);
+                this.labels = appended;
+            }
+        }
+
+        private Trace wrapIfNecessary(Trace returnedTrace) {
+            return returnedTrace == innerTrace ? this : new CompletionTraceImpl(returnedTrace, name);
+        }
+    }
+
+    /**
+     * Defers joining labels until the log line is formatted.
+     */
+    private static class Labels {
+        private final String[] labels;
+
+        private Labels(String[] labels) {
+            this.labels = labels;
+        }
+
+        @Override
+        public String toString() {
+            return String.join(", ", labels);
+        }
+    }
+
+    /**
+     * Computes the data at most once, whether it is needed first by the inner trace or by formatting the log line.
+     */
+    private static class LazyData implements Supplier<String> {
+        private Supplier<String> supplier;
+        private String data;
+
+        private LazyData(Supplier<String> supplier) {
+            this.supplier = supplier;
+        }
+
+        @Override
+        public String get() {
+            if (supplier != null) {
+                data = supplier.get();
+                supplier = null;
+            }
+            return data;
+        }
+
+        @Override
+        public String toString() {
+            return get();
+        }
+    }
+
     private static class AnalysisImpl implements Analysis {
 
         private final Analysis innerAnalysis;
+        private final boolean completion;
 
-        private AnalysisImpl(Analysis innerAnalysis) {
+        private AnalysisImpl(Analysis innerAnalysis, boolean completion) {
             this.innerAnalysis = innerAnalysis;
+            this.completion = completion;
         }
 
         @Override
         public Trace trace(String name, String tracker, int iteration) {
+            if (completion) {
+                return new CompletionTraceImpl(innerAnalysis.trace(name, tracker, iteration), name);
+            }
             if (LOG.isTraceEnabled()) {
                 LOG.trace("analysis.trace: {} {} {} {}", name, tracker, iteration, Instant.now());
             }
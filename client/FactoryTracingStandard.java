@@ -21,36 +21,92 @@
 
 package com.vaticle.factory.tracing.client;
 
+import com.google.protobuf.ByteString;
 import com.vaticle.factory.tracing.protocol.TracingProto;
 import com.vaticle.factory.tracing.protocol.TracingServiceGrpc;
-import com.vaticle.factory.tracing.protocol.TracingServiceGrpc.TracingServiceBlockingStub;
 import com.vaticle.factory.tracing.protocol.TracingServiceGrpc.TracingServiceStub;
 import io.grpc.ManagedChannel;
+import io.grpc.stub.StreamObserver;
 
+import javax.annotation.Nullable;
+
+import java.time.Duration;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
+import static com.vaticle.factory.tracing.protocol.util.ProtobufUUIDUtil.toBuf;
 import static java.util.Objects.requireNonNull;
 
+/**
+ * The FactoryTracing that sends every trace event to the server.
+ *
+ * Neither constructing a client nor creating an analysis waits for the server: the trace stream is opened when the
+ * first event is sent, and traces started before the server has returned the analysis ID are buffered until it does.
+ *
+ * Trace IDs are kept as the bits of random version 4 UUIDs, encoded once per trace into the form they are sent in, so
+ * that a trace allocates a fixed amount however many events it sends, and a {@link UUID} is only created when the
+ * application asks for one.
+ */
 public class FactoryTracingStandard implements FactoryTracing {
     private final ManagedChannel channel;
-    private final TracingServiceBlockingStub tracingServiceBlockingStub;
     private final TracingServiceStub tracingServiceStub;
 
     private final TraceStream stream;
+    private final TracingMetrics metrics;
+    private final OpenTraceTable openTraces;
+    private final Set<TraceImpl> openRoots;
+    private final GcPauseCorrelator gcPauses;
+    private final boolean measureThreadResources;
+    private final Lifecycle.Closing closing = new Lifecycle.Closing(this::closeWithin);
+    private final Thread shutdownHook;
 
     public FactoryTracingStandard(ManagedChannel channel) {
+        this(channel, new FactoryTracingBuilder());
+    }
+
+    FactoryTracingStandard(ManagedChannel channel, FactoryTracingBuilder options) {
         this.channel = channel;
-        tracingServiceBlockingStub = TracingServiceGrpc.newBlockingStub(channel);
-        tracingServiceStub = TracingServiceGrpc.newStub(channel);
-        stream = new TraceStream(tracingServiceStub);
+        tracingServiceStub = options.configure(TracingServiceGrpc.newStub(channel));
+        metrics = new TracingMetrics();
+        metrics.register(FactoryTracingStandard.class);
+        stream = new TraceStream(tracingServiceStub, metrics, options.maxPendingEvents(),
+                                 options.maxUnacknowledgedEvents(), options.payloadLimits(metrics));
+        Duration openTraceTimeout = options.openTraceTimeout();
+        openTraces = openTraceTimeout == null ? null
+                : new OpenTraceTable(options.openTraceCapacity(), openTraceTimeout, metrics);
+        measureThreadResources = options.measuresThreadResources();
+        if (measureThreadResources) ThreadResources.enable();
+        if (options.correlatesGcPauses()) {
+            openRoots = ConcurrentHashMap.newKeySet();
+            gcPauses = new GcPauseCorrelator(this::collected);
+        } else {
+            openRoots = null;
+            gcPauses = null;
+        }
+        Duration shutdownHookBudget = options.shutdownHookBudget();
+        shutdownHook = shutdownHookBudget == null ? null : Lifecycle.addShutdownHook(closing, shutdownHookBudget);
     }
 
     public Trace trace(UUID rootId, UUID parentId, String name) {
         requireNonNull(rootId, "Cannot use null rootId");
         requireNonNull(parentId, "Cannot use null traceId");
+        return trace(rootId.getMostSignificantBits(), rootId.getLeastSignificantBits(),
+                     parentId.getMostSignificantBits(), parentId.getLeastSignificantBits(), name);
+    }
+
+    @Override
+    public Trace trace(long rootIdMostSignificantBits, long rootIdLeastSignificantBits,
+                       long parentIdMostSignificantBits, long parentIdLeastSignificantBits, String name) {
         requireNonNull(name, "Cannot use null name");
-        return new TraceImpl(rootId, parentId, name);
+        return new TraceImpl(toBuf(rootIdMostSignificantBits, rootIdLeastSignificantBits), rootIdMostSignificantBits,
+                             rootIdLeastSignificantBits,
+                             toBuf(parentIdMostSignificantBits, parentIdLeastSignificantBits), name, null,
+                             stream.sampled(rootIdLeastSignificantBits));
     }
 
     public Analysis analysis(String owner, String repo, String commit, String analysisName) {
@@ -61,19 +117,56 @@ public class FactoryTracingStandard implements FactoryTracing {
         return new AnalysisImpl(owner, repo, commit, analysisName);
     }
 
+    @Override
+    public TracingMetrics metrics() {
+        return metrics;
+    }
+
+    @Override
+    public CompletableFuture<Void> flush() {
+        return stream.flush();
+    }
+
     @Override
     public void close() throws Exception {
-        stream.close();
-        channel.shutdown();
-        channel.awaitTermination(10, TimeUnit.SECONDS);
-        if (!channel.isTerminated()) {
-            channel.shutdownNow();
+        closing.closeWithin(Duration.ofMinutes(1).plusSeconds(10));
+    }
+
+    @Override
+    public CompletableFuture<Void> closeAsync(Duration deadline) {
+        return closing.closeAsync(deadline);
+    }
+
+    private void closeWithin(Duration budget) throws Exception {
+        long deadline = System.nanoTime() + budget.toNanos();
+        Lifecycle.removeShutdownHook(shutdownHook);
+        if (openTraces != null) openTraces.close();
+        if (gcPauses != null) gcPauses.close();
+        try {
+            stream.close(deadline - System.nanoTime());
+        } finally {
+            channel.shutdown();
+            if (!channel.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                channel.shutdownNow();
+            }
+            metrics.unregister();
+        }
+    }
+
+    /**
+     * Add the garbage collection as a child trace, labelled with the collector, action and cause, to every root trace
+     * that was open while it ran.
+     */
+    private void collected(String collector, String action, String cause, long startMillis, long endMillis) {
+        String[] labels = {collector, action, cause};
+        for (TraceImpl root : openRoots) {
+            if (root.startMillis <= endMillis) root.collected(labels, startMillis, endMillis);
         }
     }
 
     private class AnalysisImpl implements Analysis {
 
-        private final long analysisId;
+        private final TraceStream.AnalysisId analysisId = new TraceStream.AnalysisId();
 
         private AnalysisImpl(String owner, String repo, String commit, String analysisName) {
             TracingProto.Analysis.Req req = TracingProto.Analysis.Req.newBuilder()
@@ -82,8 +175,23 @@ public class FactoryTracingStandard implements FactoryTracing {
                     .setCommit(commit)
                     .setName(analysisName)
                     .build();
-            TracingProto.Analysis.Res res = tracingServiceBlockingStub.create(req);
-            analysisId = res.getAnalysisId();
+            tracingServiceStub.create(req, new StreamObserver<TracingProto.Analysis.Res>() {
+                @Override
+                public void onNext(TracingProto.Analysis.Res res) {
+                    analysisId.created(res.getAnalysisId());
+                    stream.analysisResolved(analysisId);
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                    analysisId.failed(throwable);
+                    stream.analysisResolved(analysisId);
+                }
+
+                @Override
+                public void onCompleted() {
+                }
+            });
         }
 
         public Trace trace(String name, String tracker, int iteration) {
@@ -93,51 +201,248 @@ public class FactoryTracingStandard implements FactoryTracing {
         }
     }
 
+    static long randomMostSignificantBits() {
+        return ThreadLocalRandom.current().nextLong() & ~0xF000L | 0x4000L;
+    }
+
+    static long randomLeastSignificantBits() {
+        return ThreadLocalRandom.current().nextLong() & 0x3FFFFFFFFFFFFFFFL | 0x8000000000000000L;
+    }
+
     private class TraceImpl implements Trace {
-        private final UUID id;
-        private final UUID rootId;
+        private final long idMost;
+        private final long idLeast;
+        private final long rootIdMost;
+        private final long rootIdLeast;
+        // Encoded once and shared: the root ID by the whole tree, and this ID by the events and children of this trace
+        private final ByteString id;
+        private final ByteString rootId;
+        private final TraceStream.AnalysisId analysis;
+        private final boolean sampled;
+        private final long startMillis = System.currentTimeMillis();
+        private final long startNanos = System.nanoTime();
+        private OpenTrace openTrace;
+        private TraceRecord record;
+        // Guarded by this root, so that no collection is sent after the root has ended
+        private boolean ended;
+        private long threadId = -1;
+        private long startCpuNanos;
+        private long startAllocatedBytes;
 
-        private TraceImpl(long analysisId, String name, String tracker, int iteration) {
-            id = UUID.randomUUID();
+        private TraceImpl(TraceStream.AnalysisId analysis, String name, String tracker, int iteration) {
+            idMost = randomMostSignificantBits();
+            idLeast = randomLeastSignificantBits();
+            rootIdMost = idMost;
+            rootIdLeast = idLeast;
+            id = toBuf(idMost, idLeast);
             rootId = id;
-            stream.traceRootStart(id, analysisId, name, tracker, iteration, System.currentTimeMillis());
+            this.analysis = analysis;
+            sampled = stream.sampled(idLeast);
+            if (sampled) {
+                stream.traceRootStart(id, analysis, name, tracker, iteration, startMillis);
+                if (openTraces != null) openTraces.add(openTrace = new OpenTrace(name));
+                if (openRoots != null) openRoots.add(this);
+                if (measureThreadResources) startMeasuring();
+            } else {
+                metrics.sampledOut();
+            }
         }
 
-        private TraceImpl(UUID rootId, UUID parentId, String name) {
+        private TraceImpl(ByteString rootId, long rootIdMost, long rootIdLeast, ByteString parentId, String name,
+                          @Nullable TraceStream.AnalysisId analysis, boolean sampled) {
             this.rootId = rootId;
-            id = UUID.randomUUID();
-            stream.traceChildStart(rootId, id, parentId, name, System.currentTimeMillis());
+            this.rootIdMost = rootIdMost;
+            this.rootIdLeast = rootIdLeast;
+            idMost = randomMostSignificantBits();
+            idLeast = randomLeastSignificantBits();
+            id = toBuf(idMost, idLeast);
+            this.analysis = analysis;
+            this.sampled = sampled;
+            if (sampled) {
+                stream.traceChildStart(rootId, id, parentId, name, startMillis, analysis);
+                if (openTraces != null) openTraces.add(openTrace = new OpenTrace(name));
+                if (measureThreadResources) startMeasuring();
+            }
         }
 
         public Trace trace(String name) {
             requireNonNull(name, "Cannot use null name");
-            return new TraceImpl(rootId, id, name);
+            return new TraceImpl(rootId, rootIdMost, rootIdLeast, id, name, analysis, sampled);
         }
 
         public Trace data(String data) {
             requireNonNull(data, "Cannot use null data");
-            stream.traceData(rootId, id, data);
+            if (sampled) stream.traceData(rootId, id, data, analysis);
+            return this;
+        }
+
+        @Override
+        public Trace data(Supplier<String> data) {
+            requireNonNull(data, "Cannot use null data");
+            if (sampled) stream.traceData(rootId, id, data, analysis);
             return this;
         }
 
         public Trace labels(String... labels) {
-            stream.traceLabels(rootId, id, labels);
+            if (sampled) stream.traceLabels(rootId, id, labels, analysis);
+            return this;
+        }
+
+        @Override
+        public Trace labels(LabelSet labelSet) {
+            requireNonNull(labelSet, "Cannot use null label set");
+            if (sampled) stream.traceLabels(rootId, id, labelSet, analysis);
+            return this;
+        }
+
+        @Override
+        public Trace attribute(String key, long value) {
+            requireNonNull(key, "Cannot use null key");
+            if (!sampled) return this;
+            record().attribute(key, value);
+            return this;
+        }
+
+        @Override
+        public Trace attribute(String key, double value) {
+            requireNonNull(key, "Cannot use null key");
+            if (!sampled) return this;
+            record().attribute(key, value);
+            return this;
+        }
+
+        @Override
+        public Trace attribute(String key, boolean value) {
+            requireNonNull(key, "Cannot use null key");
+            if (!sampled) return this;
+            record().attribute(key, value);
+            return this;
+        }
+
+        @Override
+        public Trace attribute(String key, byte[] value) {
+            requireNonNull(key, "Cannot use null key");
+            requireNonNull(value, "Cannot use null value");
+            if (!sampled) return this;
+            record().attribute(key, value);
+            return this;
+        }
+
+        @Override
+        public Trace attribute(String key, String value) {
+            requireNonNull(key, "Cannot use null key");
+            requireNonNull(value, "Cannot use null value");
+            if (!sampled) return this;
+            record().attribute(key, value);
+            return this;
+        }
+
+        @Override
+        public Trace count(String name, long delta) {
+            requireNonNull(name, "Cannot use null name");
+            if (!sampled) return this;
+            record().count(name, delta);
+            return this;
+        }
+
+        @Override
+        public Trace event(String name) {
+            requireNonNull(name, "Cannot use null name");
+            if (!sampled) return this;
+            record().event(name, System.nanoTime() - startNanos);
             return this;
         }
 
         public Trace end() {
-            stream.traceEnd(rootId, id, System.currentTimeMillis());
+            if (openRoots != null && rootId == id) closeToCollections();
+            if (sampled && (openTrace == null || openTraces.remove(openTrace))) {
+                if (threadId == Thread.currentThread().getId()) stopMeasuring();
+                stream.traceEnd(rootId, id, System.currentTimeMillis(), record, analysis);
+            }
             return this;
         }
 
+        private synchronized void collected(String[] labels, long startMillis, long endMillis) {
+            if (ended) return;
+            ByteString collectionId = toBuf(randomMostSignificantBits(), randomLeastSignificantBits());
+            stream.traceCollected(rootId, collectionId, id, labels, startMillis, endMillis, analysis);
+        }
+
+        /**
+         * Stop adding collections to this root, waiting for one being added to finish, so that it is sent before the
+         * root's end.
+         */
+        private synchronized void closeToCollections() {
+            ended = true;
+            openRoots.remove(this);
+        }
+
+        private void expire() {
+            if (openRoots != null && rootId == id) closeToCollections();
+            // The record belongs to the application thread, which may still be using it
+            TraceRecord abandoned = new TraceRecord();
+            abandoned.attribute("abandoned", true);
+            stream.traceExpired(rootId, id, System.currentTimeMillis(), abandoned, analysis);
+        }
+
         @Override
         public UUID getRootId() {
-            return rootId;
+            return new UUID(rootIdMost, rootIdLeast);
         }
 
         @Override
         public UUID getId() {
-            return id;
+            return new UUID(idMost, idLeast);
+        }
+
+        @Override
+        public long getRootIdMostSignificantBits() {
+            return rootIdMost;
+        }
+
+        @Override
+        public long getRootIdLeastSignificantBits() {
+            return rootIdLeast;
+        }
+
+        @Override
+        public long getIdMostSignificantBits() {
+            return idMost;
+        }
+
+        @Override
+        public long getIdLeastSignificantBits() {
+            return idLeast;
+        }
+
+        private TraceRecord record() {
+            if (record == null) record = new TraceRecord();
+            return record;
+        }
+
+        private void startMeasuring() {
+            threadId = Thread.currentThread().getId();
+            startCpuNanos = ThreadResources.cpuNanos();
+            startAllocatedBytes = ThreadResources.allocatedBytes();
+        }
+
+        private void stopMeasuring() {
+            long cpuNanos = ThreadResources.cpuNanos();
+            long allocatedBytes = ThreadResources.allocatedBytes();
+            record().threadResources(threadId,
+                                     startCpuNanos < 0 || cpuNanos < 0 ? -1 : cpuNanos - startCpuNanos,
+                                     startAllocatedBytes < 0 || allocatedBytes < 0 ? -1 : allocatedBytes - startAllocatedBytes);
+        }
+
+        private class OpenTrace extends OpenTraceTable.Entry {
+            private OpenTrace(String name) {
+                super(name, TraceImpl.this.startNanos);
+            }
+
+            @Override
+            void expire() {
+                TraceImpl.this.expire();
+            }
         }
     }
 }
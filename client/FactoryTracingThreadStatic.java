@@ -24,11 +24,14 @@ package com.vaticle.factory.tracing.client;
 import com.vaticle.factory.tracing.client.FactoryTracing.Analysis;
 import com.vaticle.factory.tracing.client.FactoryTracing.Trace;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MutableCallSite;
 import java.util.ArrayDeque;
 import java.util.Deque;
 import java.util.NoSuchElementException;
 import java.util.UUID;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
 
 /**
  * This class provides singleton static thread-contextual tracing. The limitation is that only one Analysis can be
@@ -42,11 +45,19 @@ public class FactoryTracingThreadStatic {
     private static final ThreadTrace THREAD_TRACE_NO_OP = new ThreadTraceNoOp();
     private static final ThreadContext THREAD_CONTEXT_NO_OP = new ThreadContextNoOp();
 
-    private static final AtomicBoolean ENABLED = new AtomicBoolean(false);
-    private static final AtomicBoolean ANALYSIS_SET = new AtomicBoolean(false);
+    /*
+     * Whether tracing is enabled and whether the analysis is set are read on every call, so they are held as constant
+     * method handles behind call sites rather than as volatile fields. The JIT inlines the constant and removes the
+     * code it guards, so disabled tracing costs nothing once compiled. Setting a flag relinks the call site, which
+     * deoptimizes the code that depended on it.
+     */
+    private static final MutableCallSite ENABLED_SITE = new MutableCallSite(MethodHandles.constant(boolean.class, false));
+    private static final MethodHandle ENABLED = ENABLED_SITE.dynamicInvoker();
+    private static final MutableCallSite ANALYSIS_SET_SITE = new MutableCallSite(MethodHandles.constant(boolean.class, false));
+    private static final MethodHandle ANALYSIS_SET = ANALYSIS_SET_SITE.dynamicInvoker();
 
-    private static FactoryTracing singletonClient;
-    private static Analysis singletonAnalysis;
+    private static volatile FactoryTracing singletonClient;
+    private static volatile Analysis singletonAnalysis;
 
     private static final ThreadStack<ThreadContext> contextStack = new ThreadStack<>();
     private static final ThreadStack<ThreadTrace> traceStack = new ThreadStack<>();
@@ -57,8 +68,9 @@ public class FactoryTracingThreadStatic {
      * @param client The Vaticle Factory tracing client to set.
      */
     public synchronized static void setGlobalTracingClient(FactoryTracing client) {
-        if (ENABLED.compareAndSet(false, true)) {
+        if (!isSet(ENABLED)) {
             singletonClient = client;
+            set(ENABLED_SITE);
         } else {
             throw new IllegalStateException("Tried to set global Vaticle Factory tracing client twice");
         }
@@ -81,11 +93,12 @@ public class FactoryTracingThreadStatic {
      * @param commit The Vaticle Factory tracing commit to set.
      */
     public synchronized static void openGlobalAnalysis(String owner, String repo, String commit, String analysisName) {
-        if (!ENABLED.get()) {
+        if (!isSet(ENABLED)) {
             throw new IllegalStateException("Tried to open analysis without setting a global tracing client");
         }
-        if (ANALYSIS_SET.compareAndSet(false, true)) {
+        if (!isSet(ANALYSIS_SET)) {
             singletonAnalysis = singletonClient.analysis(owner, repo, commit, analysisName);
+            set(ANALYSIS_SET_SITE);
         } else {
             throw new IllegalStateException("Tried to open global analysis twice");
         }
@@ -104,7 +117,7 @@ public class FactoryTracingThreadStatic {
      *                               stack.
      */
     public static ThreadTrace traceOnThread(String name) {
-        if (!ENABLED.get()) {
+        if (!isSet(ENABLED)) {
             return THREAD_TRACE_NO_OP;
         }
 
@@ -113,7 +126,7 @@ public class FactoryTracingThreadStatic {
             return stacked.traceOnThread(name);
         }
 
-        if (!ANALYSIS_SET.get()) {
+        if (!isSet(ANALYSIS_SET)) {
             return THREAD_TRACE_NO_OP;
         }
 
@@ -134,20 +147,36 @@ public class FactoryTracingThreadStatic {
      * @return A try-with-resources representation of the Trace and its existence on the thread's stack.
      */
     public static ThreadTrace continueTraceOnThread(UUID rootId, UUID parentId, String name) {
-        if (!ENABLED.get()) {
+        if (!isSet(ENABLED)) {
             return THREAD_TRACE_NO_OP;
         }
 
         return new ThreadTraceImpl(singletonClient.trace(rootId, parentId, name));
     }
 
+    /**
+     * Make an existing trace the current trace of this thread without taking over its lifetime: closing the returned
+     * resource only removes the trace from the thread's stack, and the trace must still be ended by its owner. This
+     * lets a trace follow work that hops between threads, such as the callbacks of an asynchronous call.
+     *
+     * @param trace The trace to attach.
+     * @return A try-with-resources representation of the Trace's presence on the thread's stack.
+     */
+    public static ThreadTrace attachTraceOnThread(Trace trace) {
+        if (!isSet(ENABLED)) {
+            return THREAD_TRACE_NO_OP;
+        }
+
+        return new ThreadTraceImpl(trace, false);
+    }
+
     /**
      * Gets the current trace for the thread.
      *
      * @return The current trace for the thread, null if none exists.
      */
     public static ThreadTrace currentThreadTrace() {
-        if (!ENABLED.get()) {
+        if (!isSet(ENABLED)) {
             return THREAD_TRACE_NO_OP;
         }
 
@@ -162,7 +191,7 @@ public class FactoryTracingThreadStatic {
      * @return A try-with-resources instance to control the lifetime of this context information on the thread's stack.
      */
     public static ThreadContext contextOnThread(String tracker, int iteration) {
-        if (ENABLED.get()) {
+        if (isSet(ENABLED)) {
             return new ThreadContextImpl(tracker, iteration);
         } else {
             return THREAD_CONTEXT_NO_OP;
@@ -176,7 +205,20 @@ public class FactoryTracingThreadStatic {
      * @return true if tracing is enabled, false if running in no-op mode
      */
     public static boolean isTracingEnabled() {
-        return ENABLED.get();
+        return isSet(ENABLED);
+    }
+
+    private static boolean isSet(MethodHandle flag) {
+        try {
+            return (boolean) flag.invokeExact();
+        } catch (Throwable e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void set(MutableCallSite flag) {
+        flag.setTarget(MethodHandles.constant(boolean.class, true));
+        MutableCallSite.syncAll(new MutableCallSite[]{flag});
     }
 
     /**
@@ -212,9 +254,15 @@ public class FactoryTracingThreadStatic {
 
     private static class ThreadTraceImpl implements ThreadTrace {
         private final Trace trace;
+        private final boolean endOnClose;
 
         private ThreadTraceImpl(Trace inner) {
+            this(inner, true);
+        }
+
+        private ThreadTraceImpl(Trace inner, boolean endOnClose) {
             trace = inner;
+            this.endOnClose = endOnClose;
             traceStack.push(this);
         }
 
@@ -234,12 +282,66 @@ public class FactoryTracingThreadStatic {
             return this;
         }
 
+        @Override
+        public Trace data(Supplier<String> data) {
+            trace.data(data);
+            return this;
+        }
+
         @Override
         public Trace labels(String... labels) {
             trace.labels(labels);
             return this;
         }
 
+        @Override
+        public Trace labels(LabelSet labelSet) {
+            trace.labels(labelSet);
+            return this;
+        }
+
+        @Override
+        public Trace attribute(String key, long value) {
+            trace.attribute(key, value);
+            return this;
+        }
+
+        @Override
+        public Trace attribute(String key, double value) {
+            trace.attribute(key, value);
+            return this;
+        }
+
+        @Override
+        public Trace attribute(String key, boolean value) {
+            trace.attribute(key, value);
+            return this;
+        }
+
+        @Override
+        public Trace attribute(String key, byte[] value) {
+            trace.attribute(key, value);
+            return this;
+        }
+
+        @Override
+        public Trace attribute(String key, String value) {
+            trace.attribute(key, value);
+            return this;
+        }
+
+        @Override
+        public Trace count(String name, long delta) {
+            trace.count(name, delta);
+            return this;
+        }
+
+        @Override
+        public Trace event(String name) {
+            trace.event(name);
+            return this;
+        }
+
         @Override
         public Trace end() {
             trace.end();
@@ -256,9 +358,29 @@ public class FactoryTracingThreadStatic {
             return trace.getId();
         }
 
+        @Override
+        public long getRootIdMostSignificantBits() {
+            return trace.getRootIdMostSignificantBits();
+        }
+
+        @Override
+        public long getRootIdLeastSignificantBits() {
+            return trace.getRootIdLeastSignificantBits();
+        }
+
+        @Override
+        public long getIdMostSignificantBits() {
+            return trace.getIdMostSignificantBits();
+        }
+
+        @Override
+        public long getIdLeastSignificantBits() {
+            return trace.getIdLeastSignificantBits();
+        }
+
         @Override
         public void close() {
-            end();
+            if (endOnClose) end();
             Trace stackedTrace = traceStack.pop();
             if (this != stackedTrace) {
                 throw new IllegalStateException("Traces were ended in the wrong order");
@@ -284,11 +406,21 @@ public class FactoryTracingThreadStatic {
             return THREAD_TRACE_NO_OP;
         }
 
+        @Override
+        public Trace data(Supplier<String> data) {
+            return THREAD_TRACE_NO_OP;
+        }
+
         @Override
         public Trace labels(String... labels) {
             return THREAD_TRACE_NO_OP;
         }
 
+        @Override
+        public Trace labels(LabelSet labelSet) {
+            return THREAD_TRACE_NO_OP;
+        }
+
         @Override
         public Trace end() {
             return THREAD_TRACE_NO_OP;
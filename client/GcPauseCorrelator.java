@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2022 Vaticle
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.vaticle.factory.tracing.client;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.GcInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reports every garbage collection of the JVM, as notified by its {@link GarbageCollectorMXBean}s, so that collections
+ * can be shown inside the traces that were open while they ran.
+ *
+ * The reported times are those of the whole collection. For stop-the-world collections, such as G1 young and mixed
+ * collections, that is the pause. Concurrent collectors, such as ZGC, report their concurrent cycles, so the action and
+ * collector name are passed on for the reader to tell them apart. Safepoints other than collections are not reported.
+ */
+class GcPauseCorrelator implements NotificationListener {
+    private static final Logger LOG = LoggerFactory.getLogger(GcPauseCorrelator.class);
+
+    private final Listener listener;
+    private final long jvmStartMillis = ManagementFactory.getRuntimeMXBean().getStartTime();
+    private final List<NotificationEmitter> emitters = new ArrayList<>();
+
+    GcPauseCorrelator(Listener listener) {
+        this.listener = listener;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (collector instanceof NotificationEmitter) {
+                NotificationEmitter emitter = (NotificationEmitter) collector;
+                emitter.addNotificationListener(this, null, null);
+                emitters.add(emitter);
+            }
+        }
+    }
+
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+        if (!notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) return;
+        GarbageCollectionNotificationInfo info =
+                GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+        GcInfo gcInfo = info.getGcInfo();
+        try {
+            listener.collected(info.getGcName(), info.getGcAction(), info.getGcCause(),
+                               jvmStartMillis + gcInfo.getStartTime(), jvmStartMillis + gcInfo.getEndTime());
+        } catch (RuntimeException e) {
+            LOG.warn("Failed to trace garbage collection", e);
+        }
+    }
+
+    void close() {
+        for (NotificationEmitter emitter : emitters) {
+            try {
+                emitter.removeNotificationListener(this);
+            } catch (ListenerNotFoundException e) {
+                // Already removed
+            }
+        }
+    }
+
+    interface Listener {
+        /**
+         * Called on a JMX notification thread after each garbage collection, with times in epoch milliseconds.
+         */
+        void collected(String collector, String action, String cause, long startMillis, long endMillis);
+    }
+}
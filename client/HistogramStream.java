@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2022 Vaticle
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.vaticle.factory.tracing.client;
+
+import com.vaticle.factory.tracing.protocol.TracingProto.Histogram;
+import com.vaticle.factory.tracing.protocol.TracingServiceGrpc.TracingServiceStub;
+import io.grpc.stub.StreamObserver;
+
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The GRPC client layer for sending histogram snapshots. Like {@link TraceStream}, errors are buffered and thrown on
+ * the next call, and the call after that opens a new stream. Snapshots are not acknowledged, so one sent just before
+ * the stream failed may be lost.
+ */
+class HistogramStream {
+    private final TracingServiceStub serviceStub;
+    private StreamObserver<Histogram.Req> requestObserver;
+    private HistogramResponseObserver responseObserver;
+    private boolean closed;
+
+    private final Deque<Throwable> errors = new ConcurrentLinkedDeque<>();
+    private final TracingMetrics metrics;
+
+    HistogramStream(TracingServiceStub serviceStub, TracingMetrics metrics) {
+        this.serviceStub = serviceStub;
+        this.metrics = metrics;
+    }
+
+    void histogram(Histogram.Req req) {
+        metrics.enqueued();
+        synchronized (this) {
+            metrics.dequeued();
+            ensureConnection();
+            long start = System.nanoTime();
+            requestObserver.onNext(req);
+            metrics.sent(req.getSerializedSize(), System.nanoTime() - start);
+        }
+    }
+
+    void close(long timeoutNanos) throws Exception {
+        StreamObserver<Histogram.Req> observer;
+        HistogramResponseObserver response;
+        synchronized (this) {
+            closed = true;
+            observer = requestObserver;
+            response = responseObserver;
+        }
+        if (observer != null) {
+            observer.onCompleted();
+            try {
+                response.finishLatch.await(timeoutNanos, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                observer.onError(e);
+                throw e;
+            }
+        }
+
+        throwErrors();
+    }
+
+    private void ensureConnection() {
+        assert Thread.holdsLock(this);
+        if (closed) {
+            errors.add(new IllegalStateException("Tracing client is closed"));
+            metrics.errorBuffered();
+        }
+        throwErrors();
+        if (requestObserver == null) {
+            responseObserver = new HistogramResponseObserver();
+            requestObserver = serviceStub.histogram(responseObserver);
+        }
+    }
+
+    private synchronized void streamEnded(HistogramResponseObserver ended) {
+        if (responseObserver != ended) return;
+        requestObserver = null;
+        responseObserver = null;
+    }
+
+    private synchronized void throwErrors() {
+        if (errors.peek() != null) {
+            int count = 1;
+            RuntimeException ex = new RuntimeException(errors.pop());
+            while (errors.peek() != null) {
+                ex.addSuppressed(errors.pop());
+                count++;
+            }
+            metrics.errorsThrown(count);
+            throw ex;
+        }
+    }
+
+    private class HistogramResponseObserver implements StreamObserver<Histogram.Res> {
+        private final CountDownLatch finishLatch = new CountDownLatch(1);
+
+        @Override
+        public void onNext(Histogram.Res res) {
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            errors.add(throwable);
+            metrics.errorBuffered();
+            streamEnded(this);
+            finishLatch.countDown();
+        }
+
+        @Override
+        public void onCompleted() {
+            streamEnded(this);
+            finishLatch.countDown();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2022 Vaticle
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.vaticle.factory.tracing.client;
+
+import com.google.protobuf.ByteString;
+import com.vaticle.factory.tracing.protocol.TracingProto.Trace;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * An immutable set of labels that is created once and then applied to any number of traces with
+ * {@link FactoryTracing.Trace#labels(LabelSet)}.
+ *
+ * The labels are UTF-8 encoded once, when the set is created, into a message that every labels event is built from.
+ * Applying a set therefore allocates neither a varargs array nor a list, and does not encode the labels again.
+ */
+public final class LabelSet {
+    private final String[] labels;
+    private final Trace.Req template;
+
+    private LabelSet(String[] labels) {
+        this.labels = labels;
+        Trace.Req.Builder builder = Trace.Req.newBuilder();
+        for (String label : labels) {
+            builder.addLabelsBytes(ByteString.copyFromUtf8(requireNonNull(label, "Cannot use null label")));
+        }
+        template = builder.build();
+    }
+
+    /**
+     * @param labels The labels in the set.
+     * @return A set that can be kept, for example in a static field, and applied to many traces.
+     */
+    public static LabelSet of(String... labels) {
+        return new LabelSet(labels.clone());
+    }
+
+    /**
+     * @return The labels in this set.
+     */
+    public List<String> labels() {
+        return Collections.unmodifiableList(Arrays.asList(labels));
+    }
+
+    String[] array() {
+        return labels;
+    }
+
+    /**
+     * @return A labels event with no IDs, to build the event for a trace from.
+     */
+    Trace.Req template() {
+        return template;
+    }
+
+    @Override
+    public String toString() {
+        return String.join(", ", labels);
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2022 Vaticle
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.vaticle.factory.tracing.client;
+
+import com.vaticle.factory.tracing.protocol.TracingProto.Histogram;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free log-linear histogram of durations in nanoseconds, with 8 buckets per power of two giving a worst case
+ * relative error of 12.5%. Recording is a handful of atomic operations and never allocates.
+ *
+ * The bucket layout is part of the protocol and is documented on the {@link Histogram} message.
+ */
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        buckets.incrementAndGet(bucketIndex(nanos));
+        sum.addAndGet(nanos);
+        lowerMin(nanos);
+        raiseMax(nanos);
+    }
+
+    /**
+     * Move everything recorded since the last snapshot into the given request, resetting this histogram. Values
+     * recorded concurrently with a snapshot are counted in either this snapshot or the next one.
+     *
+     * @param req The request to add the count, sum, extremes and non-empty buckets to.
+     * @return false if nothing was recorded since the last snapshot, in which case the request is left untouched.
+     */
+    boolean drainTo(Histogram.Req.Builder req) {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            if (buckets.get(i) == 0) continue;
+            long bucketCount = buckets.getAndSet(i, 0);
+            if (bucketCount == 0) continue;
+            req.addBuckets(i).addCounts(bucketCount);
+            count += bucketCount;
+        }
+        if (count == 0) return false;
+        req.setCount(count)
+                .setSum(sum.getAndSet(0))
+                .setMin(min.getAndSet(Long.MAX_VALUE))
+                .setMax(max.getAndSet(0));
+        return true;
+    }
+
+    /**
+     * Add a snapshot taken by {@link #drainTo} back into this histogram, so that it is included in the next snapshot.
+     * Used when a snapshot could not be sent.
+     */
+    void restore(Histogram.ReqOrBuilder snapshot) {
+        for (int i = 0; i < snapshot.getBucketsCount(); i++) {
+            buckets.addAndGet(snapshot.getBuckets(i), snapshot.getCounts(i));
+        }
+        sum.addAndGet(snapshot.getSum());
+        lowerMin(snapshot.getMin());
+        raiseMax(snapshot.getMax());
+    }
+
+    private void lowerMin(long nanos) {
+        long currentMin = min.get();
+        while (nanos < currentMin && !min.compareAndSet(currentMin, nanos)) {
+            currentMin = min.get();
+        }
+    }
+
+    private void raiseMax(long nanos) {
+        long currentMax = max.get();
+        while (nanos > currentMax && !max.compareAndSet(currentMax, nanos)) {
+            currentMax = max.get();
+        }
+    }
+
+    static int bucketIndex(long nanos) {
+        if (nanos < SUB_BUCKETS) return (int) nanos;
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(nanos);
+        int subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long bucketLowerBound(int index) {
+        if (index < SUB_BUCKETS) return index;
+        return (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (index / SUB_BUCKETS - 1);
+    }
+}
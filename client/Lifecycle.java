@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2022 Vaticle
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.vaticle.factory.tracing.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Closing a client within a time budget, either in the background or from a JVM shutdown hook.
+ */
+class Lifecycle {
+    private static final Logger LOG = LoggerFactory.getLogger(Lifecycle.class);
+
+    interface Closer {
+        void closeWithin(Duration budget) throws Exception;
+    }
+
+    /**
+     * Runs a closer at most once. Callers after the first wait for it to finish, within their own budget, rather than
+     * returning while the client is still draining.
+     */
+    static class Closing implements Closer {
+        private final Closer closer;
+        private final AtomicBoolean started = new AtomicBoolean(false);
+        private final CompletableFuture<Void> closed = new CompletableFuture<>();
+
+        Closing(Closer closer) {
+            this.closer = closer;
+        }
+
+        @Override
+        public void closeWithin(Duration budget) throws Exception {
+            if (!started.compareAndSet(false, true)) {
+                awaitClosed(budget);
+                return;
+            }
+            try {
+                closer.closeWithin(budget);
+                closed.complete(null);
+            } catch (Throwable e) {
+                closed.completeExceptionally(e);
+                throw e;
+            }
+        }
+
+        /**
+         * Close on a background thread, or join a close that has already started.
+         */
+        CompletableFuture<Void> closeAsync(Duration budget) {
+            if (!started.get()) {
+                CloseExecutor.EXECUTOR.execute(() -> {
+                    try {
+                        closeWithin(budget);
+                    } catch (Exception e) {
+                        // reported through the future
+                    }
+                });
+            }
+            return closed;
+        }
+
+        private void awaitClosed(Duration budget) throws InterruptedException {
+            try {
+                closed.get(budget.toNanos(), TimeUnit.NANOSECONDS);
+            } catch (ExecutionException | TimeoutException e) {
+                // the first caller reports the failure, and forcibly closes once its own budget has passed
+            }
+        }
+    }
+
+    static Thread addShutdownHook(Closer closer, Duration budget) {
+        Thread hook = new Thread(() -> {
+            try {
+                closer.closeWithin(budget);
+            } catch (Exception e) {
+                LOG.warn("Failed to drain traces on shutdown", e);
+            }
+        }, "factory-tracing-shutdown");
+        Runtime.getRuntime().addShutdownHook(hook);
+        return hook;
+    }
+
+    static void removeShutdownHook(@Nullable Thread hook) {
+        if (hook == null || hook == Thread.currentThread()) return;
+        try {
+            Runtime.getRuntime().removeShutdownHook(hook);
+        } catch (IllegalStateException e) {
+            // the JVM is already shutting down, so the hook is running or about to
+        }
+    }
+
+    /**
+     * Lazily created the first time a client is closed in the background. Threads are reused across closes and exit
+     * once idle.
+     */
+    private static class CloseExecutor {
+        private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "factory-tracing-close");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
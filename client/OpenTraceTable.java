@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2022 Vaticle
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.vaticle.factory.tracing.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A fixed-size table of the traces that have started but not ended, so that traces the application forgets to end are
+ * expired rather than left open forever.
+ *
+ * Each trace claims a free slot near a random position with a compare-and-set, and releases it the same way when it
+ * ends. A background thread periodically scans the table and expires the traces that have been open for longer than
+ * the timeout. Whichever of the two releases the slot first decides how the trace ends, so a trace is never ended
+ * twice. When no free slot is found the trace is not tracked, so memory stays bounded by the table size.
+ */
+class OpenTraceTable {
+    private static final Logger LOG = LoggerFactory.getLogger(OpenTraceTable.class);
+    private static final int MAX_PROBES = 8;
+    private static final long MIN_SWEEP_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final AtomicReferenceArray<Entry> slots;
+    private final int mask;
+    private final long timeoutNanos;
+    private final TracingMetrics metrics;
+    private final ScheduledExecutorService sweeper;
+
+    OpenTraceTable(int capacity, Duration timeout, TracingMetrics metrics) {
+        int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        slots = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+        timeoutNanos = timeout.toNanos();
+        this.metrics = metrics;
+        sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "factory-tracing-expiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long sweepNanos = Math.max(timeoutNanos / 2, MIN_SWEEP_NANOS);
+        sweeper.scheduleWithFixedDelay(this::sweep, sweepNanos, sweepNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Start tracking the given trace, unless the table is too full to find a slot for it.
+     */
+    void add(Entry entry) {
+        int start = ThreadLocalRandom.current().nextInt();
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            int slot = (start + probe) & mask;
+            if (slots.get(slot) == null && slots.compareAndSet(slot, null, entry)) {
+                entry.slot = slot;
+                return;
+            }
+        }
+        metrics.untracked();
+    }
+
+    /**
+     * Stop tracking the given trace because it is ending.
+     *
+     * @return False if the trace has already been expired, in which case it must not be ended again.
+     */
+    boolean remove(Entry entry) {
+        return entry.slot < 0 || slots.compareAndSet(entry.slot, entry, null);
+    }
+
+    void close() {
+        sweeper.shutdownNow();
+    }
+
+    private void sweep() {
+        long now = System.nanoTime();
+        for (int slot = 0; slot < slots.length(); slot++) {
+            Entry entry = slots.get(slot);
+            if (entry != null && now - entry.startNanos > timeoutNanos && slots.compareAndSet(slot, entry, null)) {
+                try {
+                    entry.expire();
+                } catch (RuntimeException e) {
+                    LOG.warn("Failed to expire abandoned trace '{}'", entry.name, e);
+                }
+                metrics.abandoned(entry.name);
+            }
+        }
+    }
+
+    /**
+     * A trace tracked by the table. Entries are separate from the traces, so that traces pay for tracking only when
+     * expiry is enabled.
+     */
+    abstract static class Entry {
+        final String name;
+        final long startNanos;
+        private volatile int slot = -1;
+
+        Entry(String name, long startNanos) {
+            this.name = name;
+            this.startNanos = startNanos;
+        }
+
+        /**
+         * End the trace on behalf of the application, which has not ended it within the timeout.
+         */
+        abstract void expire();
+    }
+}
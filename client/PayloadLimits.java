@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2022 Vaticle
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.vaticle.factory.tracing.client;
+
+import com.google.protobuf.ByteString;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The limits on what a client sends, so that one oversized payload cannot stall the stream for every thread.
+ *
+ * Data and labels beyond their limits are truncated rather than discarded, and end with a marker saying how much was
+ * cut, so that the server still learns what the trace was. The same goes for the names and string values recorded for
+ * the end event, while byte values are cut short, and events, counters and attributes beyond their maximum count are
+ * left out. The byte budget is applied once per root trace, like the limits set by the server in
+ * {@link StreamControl}: once the events written in the current second have used it up, new root traces are rejected,
+ * while those already started are still sent whole and any bytes they write beyond the budget are carried over into
+ * the following seconds.
+ */
+class PayloadLimits {
+    private static final long SECOND_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final int maxDataLength;
+    private final int maxLabels;
+    private final int maxLabelLength;
+    private final int maxEvents;
+    private final int maxAttributes;
+    private final int maxValueLength;
+    private final long maxBytesPerSecond;
+    private final TracingMetrics metrics;
+
+    private long windowStart = System.nanoTime();
+    private long windowBytes;
+
+    PayloadLimits(int maxDataLength, int maxLabels, int maxLabelLength, int maxEvents, int maxAttributes,
+                  int maxValueLength, long maxBytesPerSecond, TracingMetrics metrics) {
+        this.maxDataLength = maxDataLength;
+        this.maxLabels = maxLabels;
+        this.maxLabelLength = maxLabelLength;
+        this.maxEvents = maxEvents;
+        this.maxAttributes = maxAttributes;
+        this.maxValueLength = maxValueLength;
+        this.maxBytesPerSecond = maxBytesPerSecond;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return The data, truncated to the maximum length.
+     */
+    String data(String data) {
+        if (data.length() <= maxDataLength) return data;
+        metrics.truncated();
+        return truncate(data, maxDataLength);
+    }
+
+    /**
+     * @return Whether the labels can be sent as they are.
+     */
+    boolean fits(String[] labels) {
+        if (labels.length > maxLabels) return false;
+        for (String label : labels) {
+            if (label.length() > maxLabelLength) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return The labels, each truncated to the maximum length, and with the labels beyond the maximum count replaced
+     * by a single marker label.
+     */
+    String[] labels(String[] labels) {
+        if (fits(labels)) return labels;
+        metrics.truncated();
+        int kept = labels.length > maxLabels ? maxLabels - 1 : labels.length;
+        String[] limited = new String[labels.length > maxLabels ? maxLabels : labels.length];
+        for (int i = 0; i < kept; i++) {
+            limited[i] = labels[i].length() > maxLabelLength ? truncate(labels[i], maxLabelLength) : labels[i];
+        }
+        if (kept < limited.length) limited[kept] = "[" + (labels.length - kept) + " more labels]";
+        return limited;
+    }
+
+    /**
+     * @return The maximum number of events sent with the end of a trace.
+     */
+    int maxEvents() {
+        return maxEvents;
+    }
+
+    /**
+     * @return The maximum number of attributes, and separately of counters, sent with the end of a trace.
+     */
+    int maxAttributes() {
+        return maxAttributes;
+    }
+
+    /**
+     * @return The name or string value, truncated to the maximum value length.
+     */
+    String value(String value) {
+        return value.length() <= maxValueLength ? value : truncate(value, maxValueLength);
+    }
+
+    /**
+     * @return The bytes value, cut to the maximum value length.
+     */
+    ByteString value(ByteString value) {
+        return value.size() <= maxValueLength ? value : value.substring(0, maxValueLength);
+    }
+
+    /**
+     * Count an end event whose record did not fit the limits.
+     *
+     * @param dropped The number of events, counters and attributes left out of it.
+     */
+    void recordTruncated(int dropped) {
+        metrics.truncated();
+        if (dropped > 0) metrics.recordEntriesDropped(dropped);
+    }
+
+    /**
+     * @return Whether a new root trace may be sent, with all of its descendants, which it may not once the bytes written
+     * in the current second have used up the budget.
+     */
+    boolean admitRoot() {
+        if (maxBytesPerSecond == 0 || withinBudget()) return true;
+        metrics.rejected();
+        return false;
+    }
+
+    /**
+     * Count the bytes of an event written, against the budget.
+     */
+    void written(int bytes) {
+        if (maxBytesPerSecond == 0) return;
+        synchronized (this) {
+            windowBytes += bytes;
+        }
+    }
+
+    private synchronized boolean withinBudget() {
+        long elapsed = System.nanoTime() - windowStart;
+        if (elapsed >= SECOND_NANOS) {
+            long windows = elapsed / SECOND_NANOS;
+            windowStart += windows * SECOND_NANOS;
+            windowBytes = windows > windowBytes / maxBytesPerSecond ? 0 : windowBytes - windows * maxBytesPerSecond;
+        }
+        return windowBytes < maxBytesPerSecond;
+    }
+
+    private static String truncate(String value, int length) {
+        // Do not split a surrogate pair, which would not encode as UTF-8
+        int end = length > 0 && Character.isHighSurrogate(value.charAt(length - 1)) ? length - 1 : length;
+        return value.substring(0, end) + "...[truncated " + (value.length() - end) + " chars]";
+    }
+}
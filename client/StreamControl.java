@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2022 Vaticle
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.vaticle.factory.tracing.client;
+
+import com.vaticle.factory.tracing.protocol.TracingProto.Trace;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The limits most recently set by the server through {@link Trace.Control} messages on the response stream.
+ *
+ * Every limit is applied once per root trace, when it starts, and its descendants follow the root's decision, so a
+ * trace is either sent whole or not at all. Sampling is decided from the root ID, so every process continuing the same
+ * trace under the same limits makes the same decision. While paused, or while the events sent in the current second
+ * have reached the rate limit, no new root traces are started; those already started are still sent, and any events
+ * they send beyond the limit are carried over into the following seconds.
+ */
+class StreamControl {
+    private static final long SAMPLE_MASK = (1L << 53) - 1;
+    private static final long SECOND_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private volatile double dropProbability;
+    private volatile int maxEventsPerSecond;
+    private volatile boolean paused;
+
+    private long windowStart = System.nanoTime();
+    private long windowEvents;
+
+    void apply(Trace.Control control) {
+        dropProbability = control.getDropProbability();
+        maxEventsPerSecond = control.getMaxEventsPerSecond();
+        paused = control.getPaused();
+    }
+
+    /**
+     * @param rootIdLeastSignificantBits The least significant bits of the root ID.
+     * @return Whether the root trace with the given ID, and all of its descendants, should be sent.
+     */
+    boolean admit(long rootIdLeastSignificantBits) {
+        return !paused && sampled(rootIdLeastSignificantBits) && withinRate();
+    }
+
+    /**
+     * Count an event sent, against the rate limit.
+     */
+    void sent() {
+        if (maxEventsPerSecond == 0) return;
+        synchronized (this) {
+            windowEvents++;
+        }
+    }
+
+    private boolean sampled(long rootIdLeastSignificantBits) {
+        double drop = dropProbability;
+        // The low bits of a random UUID are uniformly distributed, unlike its version and variant bits
+        return drop <= 0 || (rootIdLeastSignificantBits & SAMPLE_MASK) * 0x1.0p-53 >= drop;
+    }
+
+    private synchronized boolean withinRate() {
+        int limit = maxEventsPerSecond;
+        if (limit == 0) return true;
+        long elapsed = System.nanoTime() - windowStart;
+        if (elapsed >= SECOND_NANOS) {
+            windowStart += elapsed - elapsed % SECOND_NANOS;
+            windowEvents = Math.max(0, windowEvents - limit * (elapsed / SECOND_NANOS));
+        }
+        return windowEvents < limit;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2022 Vaticle
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.vaticle.factory.tracing.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Reads the CPU time and allocated bytes of the current thread, where the JVM supports measuring them. Allocated bytes
+ * need the {@code com.sun.management} extension of {@link ThreadMXBean}, which HotSpot provides.
+ */
+class ThreadResources {
+    private static final Logger LOG = LoggerFactory.getLogger(ThreadResources.class);
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final com.sun.management.ThreadMXBean ALLOCATIONS =
+            THREADS instanceof com.sun.management.ThreadMXBean ? (com.sun.management.ThreadMXBean) THREADS : null;
+
+    private ThreadResources() {
+    }
+
+    /**
+     * Turn on the measurements that the JVM supports but may have turned off. This changes the JVM for every thread,
+     * not only the traced ones, so it is logged.
+     */
+    static void enable() {
+        if (THREADS.isCurrentThreadCpuTimeSupported() && !THREADS.isThreadCpuTimeEnabled()) {
+            LOG.info("Enabling thread CPU time measurement in the JVM to measure traces");
+            THREADS.setThreadCpuTimeEnabled(true);
+        }
+        if (ALLOCATIONS != null && ALLOCATIONS.isThreadAllocatedMemorySupported()
+                && !ALLOCATIONS.isThreadAllocatedMemoryEnabled()) {
+            LOG.info("Enabling thread allocated memory measurement in the JVM to measure traces");
+            ALLOCATIONS.setThreadAllocatedMemoryEnabled(true);
+        }
+    }
+
+    /**
+     * @return The CPU time of the current thread in nanoseconds, or -1 if it is not measured.
+     */
+    static long cpuNanos() {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : -1;
+    }
+
+    /**
+     * @return The bytes allocated by the current thread so far, or -1 if they are not measured.
+     */
+    static long allocatedBytes() {
+        return ALLOCATIONS != null ? ALLOCATIONS.getThreadAllocatedBytes(Thread.currentThread().getId()) : -1;
+    }
+}
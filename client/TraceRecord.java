@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2022 Vaticle
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.vaticle.factory.tracing.client;
+
+import com.google.protobuf.ByteString;
+import com.vaticle.factory.tracing.protocol.TracingProto.Trace;
+
+import java.util.Arrays;
+
+/**
+ * Values recorded on a trace during its lifetime, held in primitive arrays and only encoded into the end event of the
+ * trace. Like a trace, a record is not safe for concurrent use.
+ */
+class TraceRecord {
+    private static final byte INT = 0;
+    private static final byte DOUBLE = 1;
+    private static final byte BOOL = 2;
+    private static final byte BYTES = 3;
+    private static final byte STRING = 4;
+
+    private String[] attributeKeys = new String[4];
+    private byte[] attributeTypes = new byte[4];
+    private long[] attributeValues = new long[4];
+    private Object[] attributeObjects;
+    private int attributeCount;
+
+    private String[] counterNames;
+    private long[] counterValues;
+    private int counterCount;
+
+    private String[] eventNames;
+    private long[] eventOffsets;
+    private int eventCount;
+
+    private long threadId = -1;
+    private long cpuNanos = -1;
+    private long allocatedBytes = -1;
+
+    void attribute(String key, long value) {
+        putAttribute(key, INT, value, null);
+    }
+
+    void attribute(String key, double value) {
+        putAttribute(key, DOUBLE, Double.doubleToRawLongBits(value), null);
+    }
+
+    void attribute(String key, boolean value) {
+        putAttribute(key, BOOL, value ? 1 : 0, null);
+    }
+
+    void attribute(String key, byte[] value) {
+        putAttribute(key, BYTES, 0, ByteString.copyFrom(value));
+    }
+
+    void attribute(String key, String value) {
+        putAttribute(key, STRING, 0, value);
+    }
+
+    void count(String name, long delta) {
+        if (counterNames == null) {
+            counterNames = new String[4];
+            counterValues = new long[4];
+        }
+        int index = 0;
+        while (index < counterCount && !counterNames[index].equals(name)) index++;
+        if (index == counterCount) {
+            if (index == counterNames.length) {
+                counterNames = Arrays.copyOf(counterNames, index * 2);
+                counterValues = Arrays.copyOf(counterValues, index * 2);
+            }
+            counterNames[index] = name;
+            counterCount++;
+        }
+        counterValues[index] += delta;
+    }
+
+    void event(String name, long offsetNanos) {
+        if (eventNames == null) {
+            eventNames = new String[8];
+            eventOffsets = new long[8];
+        } else if (eventCount == eventNames.length) {
+            eventNames = Arrays.copyOf(eventNames, eventCount * 2);
+            eventOffsets = Arrays.copyOf(eventOffsets, eventCount * 2);
+        }
+        eventNames[eventCount] = name;
+        eventOffsets[eventCount] = offsetNanos;
+        eventCount++;
+    }
+
+    /**
+     * @param cpuNanos       The CPU time of the thread during the trace, or -1 if it was not measured.
+     * @param allocatedBytes The bytes allocated by the thread during the trace, or -1 if they were not measured.
+     */
+    void threadResources(long threadId, long cpuNanos, long allocatedBytes) {
+        this.threadId = threadId;
+        this.cpuNanos = cpuNanos;
+        this.allocatedBytes = allocatedBytes;
+    }
+
+    /**
+     * Add the record to the end event of its trace, within the limits. The first events, counters and attributes
+     * recorded are kept, and longer names and values are truncated.
+     */
+    void addTo(Trace.Req.Builder req, PayloadLimits limits) {
+        if (threadId >= 0) req.setThreadId(threadId);
+        if (cpuNanos >= 0) req.setCpuNanos(Trace.Req.Measurement.newBuilder().setValue(cpuNanos));
+        if (allocatedBytes >= 0) req.setAllocatedBytes(Trace.Req.Measurement.newBuilder().setValue(allocatedBytes));
+        boolean truncated = false;
+        int events = Math.min(eventCount, limits.maxEvents());
+        for (int i = 0; i < events; i++) {
+            String name = limits.value(eventNames[i]);
+            truncated |= name != eventNames[i];
+            req.addEventsBuilder().setName(name).setOffset(eventOffsets[i]);
+        }
+        int counters = Math.min(counterCount, limits.maxAttributes());
+        for (int i = 0; i < counters; i++) {
+            String name = limits.value(counterNames[i]);
+            truncated |= name != counterNames[i];
+            req.addCountersBuilder().setName(name).setValue(counterValues[i]);
+        }
+        int attributes = Math.min(attributeCount, limits.maxAttributes());
+        for (int i = 0; i < attributes; i++) {
+            String key = limits.value(attributeKeys[i]);
+            truncated |= key != attributeKeys[i];
+            Trace.Req.Attribute.Builder attribute = req.addAttributesBuilder().setKey(key);
+            switch (attributeTypes[i]) {
+                case INT:
+                    attribute.setIntValue(attributeValues[i]);
+                    break;
+                case DOUBLE:
+                    attribute.setDoubleValue(Double.longBitsToDouble(attributeValues[i]));
+                    break;
+                case BOOL:
+                    attribute.setBoolValue(attributeValues[i] != 0);
+                    break;
+                case BYTES:
+                    ByteString bytes = limits.value((ByteString) attributeObjects[i]);
+                    truncated |= bytes != attributeObjects[i];
+                    attribute.setBytesValue(bytes);
+                    break;
+                case STRING:
+                    String string = limits.value((String) attributeObjects[i]);
+                    truncated |= string != attributeObjects[i];
+                    attribute.setStringValue(string);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown attribute type " + attributeTypes[i]);
+            }
+        }
+        int dropped = eventCount - events + counterCount - counters + attributeCount - attributes;
+        if (truncated || dropped > 0) limits.recordTruncated(dropped);
+    }
+
+    /**
+     * A later value for the same key replaces the earlier one, which keeps the record as small as the number of
+     * distinct keys.
+     */
+    private void putAttribute(String key, byte type, long value, Object object) {
+        int index = 0;
+        while (index < attributeCount && !attributeKeys[index].equals(key)) index++;
+        if (index == attributeCount) {
+            if (index == attributeKeys.length) {
+                attributeKeys = Arrays.copyOf(attributeKeys, index * 2);
+                attributeTypes = Arrays.copyOf(attributeTypes, index * 2);
+                attributeValues = Arrays.copyOf(attributeValues, index * 2);
+                if (attributeObjects != null) attributeObjects = Arrays.copyOf(attributeObjects, index * 2);
+            }
+            attributeKeys[index] = key;
+            attributeCount++;
+        }
+        attributeTypes[index] = type;
+        attributeValues[index] = value;
+        if (object != null || attributeObjects != null) {
+            if (attributeObjects == null) attributeObjects = new Object[attributeKeys.length];
+            attributeObjects[index] = object;
+        }
+    }
+}
@@ -21,18 +21,25 @@
 
 package com.vaticle.factory.tracing.client;
 
+import com.google.protobuf.ByteString;
 import com.vaticle.factory.tracing.protocol.TracingProto.Trace;
 import com.vaticle.factory.tracing.protocol.TracingServiceGrpc.TracingServiceStub;
 import io.grpc.stub.StreamObserver;
 
+import javax.annotation.Nullable;
 import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.Deque;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
 
 import static com.vaticle.factory.tracing.protocol.util.ProtobufUUIDUtil.toBuf;
+import static java.util.Objects.requireNonNull;
 
 /**
  * The GRPC client layer for the tracing session.
@@ -42,139 +49,514 @@ import static com.vaticle.factory.tracing.protocol.util.ProtobufUUIDUtil.toBuf;
  * potential to be confusing, since a server-side issue caused by the client might not be related to the point when the
  * RuntimeException appears to be thrown. The hope is that the (suppressed) exceptions passed on will still be useful.
  *
- * For this setup to work, it is vital that all methods either call {@link #ensureConnection()} or call
+ * For this setup to work, it is vital that all methods either call {@link #ensureConnection} or call
  * {@link #throwErrors()} directly.
+ *
+ * The stream is only opened when the first event is written. Events that belong to an analysis which the server has
+ * not created yet are buffered, together with every event after them so that the server receives events in order,
+ * and are written once the analysis ID arrives. Events of an analysis that could not be created are dropped, and its
+ * error is thrown once, on the next call for one of its traces, rather than on whichever trace happens to come next.
+ *
+ * Every event written is numbered, and kept until the server acknowledges its sequence. If the stream fails, the error
+ * is still thrown on the next call, but a new stream of the same session is opened, after a delay that grows while
+ * the server stays unreachable, and first resends every unacknowledged event. Closing resends them too if no stream is
+ * open, so the server sees each event at least once and discards the duplicates. The number of events kept is bounded;
+ * the oldest are forgotten when it is exceeded, which the server can detect as a gap.
+ *
+ * The server can also limit what is sent through control messages on the response stream, see {@link StreamControl}.
+ * The client limits the size of payloads and the bytes written per second itself, see {@link PayloadLimits}. Like the
+ * server's limits, the byte budget is applied per root trace.
  */
 class TraceStream {
-    private final StreamObserver<Trace.Req> requestObserver;
-    private final CountDownLatch finishLatch = new CountDownLatch(1);
+    private static final long MIN_RESEND_DELAY_MILLIS = 100;
+    private static final long MAX_RESEND_DELAY_MILLIS = 10_000;
+
+    private final TracingServiceStub serviceStub;
+    private volatile StreamObserver<Trace.Req> requestObserver;
+    private volatile TracingResponseObserver responseObserver;
+    private volatile boolean closed;
+
+    private final ByteString session = toBuf(UUID.randomUUID());
+    private long sequence;
+    private final Deque<Trace.Req> unacknowledged = new ArrayDeque<>();
+    private final int maxUnacknowledgedEvents;
+    private long resendDelayMillis = MIN_RESEND_DELAY_MILLIS;
+    private final StreamControl control = new StreamControl();
+    private final PayloadLimits limits;
+
+    private final Deque<Throwable> errors = new ConcurrentLinkedDeque<>();
+    private final TracingMetrics metrics;
+
+    private long acknowledgedSequence;
+    private final Deque<PendingFlush> pendingFlushes = new ArrayDeque<>();
 
-    private final Deque<Throwable> errors = new ArrayDeque<>();
+    private final Deque<PendingEvent> pendingEvents = new ArrayDeque<>();
+    private final int maxPendingEvents;
 
-    TraceStream(TracingServiceStub serviceStub) {
-        requestObserver = serviceStub.stream(new TracingResponseObserver());
+    TraceStream(TracingServiceStub serviceStub, TracingMetrics metrics, int maxPendingEvents,
+                int maxUnacknowledgedEvents, PayloadLimits limits) {
+        this.serviceStub = serviceStub;
+        this.metrics = metrics;
+        this.maxPendingEvents = maxPendingEvents;
+        this.maxUnacknowledgedEvents = maxUnacknowledgedEvents;
+        this.limits = limits;
     }
 
-    void traceRootStart(UUID traceId, Long analysisId, String name, String tracker, int iteration, long startMillis) {
+    void traceRootStart(ByteString traceId, AnalysisId analysis, String name, String tracker, int iteration, long startMillis) {
         assert traceId != null;
-        assert analysisId != null;
-        ensureConnection();
-        Trace.Req req = Trace.Req.newBuilder()
-                .setId(toBuf(traceId))
+        assert analysis != null;
+        ensureConnection(analysis);
+        Trace.Req.Builder req = Trace.Req.newBuilder()
+                .setId(traceId)
                 .setRootStart(Trace.Req.StartRoot.newBuilder()
-                                      .setAnalysisId(analysisId)
                                       .setTracker(tracker)
                                       .setIteration(iteration))
                 .setName(name)
-                .setStarted(startMillis)
-                .build();
-        synchronized (this) {
-            requestObserver.onNext(req);
-        }
+                .setStarted(startMillis);
+        send(req, analysis);
     }
 
-    void traceChildStart(UUID rootId, UUID traceId, UUID parentId, String name, long startMillis) {
+    void traceChildStart(ByteString rootId, ByteString traceId, ByteString parentId, String name, long startMillis,
+                         @Nullable AnalysisId analysis) {
         assert rootId != null;
         assert traceId != null;
-        ensureConnection();
-        Trace.Req req = Trace.Req.newBuilder()
-                .setId(toBuf(traceId))
-                .setRootId(toBuf(rootId))
-                .setParentId(toBuf(parentId))
+        ensureConnection(analysis);
+        Trace.Req.Builder req = Trace.Req.newBuilder()
+                .setId(traceId)
+                .setRootId(rootId)
+                .setParentId(parentId)
                 .setName(name)
-                .setStarted(startMillis)
-                .build();
-        synchronized (this) {
-            requestObserver.onNext(req);
-        }
+                .setStarted(startMillis);
+        send(req, analysis);
     }
 
-    void traceData(UUID rootId, UUID traceId, String data) {
+    void traceData(ByteString rootId, ByteString traceId, String data, @Nullable AnalysisId analysis) {
         assert rootId != null;
         assert traceId != null;
-        ensureConnection();
-        Trace.Req req = Trace.Req.newBuilder()
-                .setId(toBuf(traceId))
-                .setRootId(toBuf(rootId))
-                .setData(data)
-                .build();
-        synchronized (this) {
-            requestObserver.onNext(req);
-        }
+        ensureConnection(analysis);
+        Trace.Req.Builder req = Trace.Req.newBuilder()
+                .setId(traceId)
+                .setRootId(rootId)
+                .setData(limits.data(data));
+        send(req, analysis);
     }
 
-    void traceLabels(UUID rootId, UUID traceId, String[] labels) {
+    void traceData(ByteString rootId, ByteString traceId, Supplier<String> data, @Nullable AnalysisId analysis) {
         assert rootId != null;
         assert traceId != null;
-        ensureConnection();
-        Trace.Req req = Trace.Req.newBuilder()
-                .setId(toBuf(traceId))
-                .setRootId(toBuf(rootId))
-                .addAllLabels(Arrays.asList(labels))
-                .build();
-        synchronized (this) {
-            requestObserver.onNext(req);
+        ensureConnection(analysis);
+        if (analysis != null && analysis.isFailed()) return;
+        Trace.Req.Builder req = Trace.Req.newBuilder()
+                .setId(traceId)
+                .setRootId(rootId)
+                .setData(limits.data(requireNonNull(data.get(), "Cannot use null data")));
+        send(req, analysis);
+    }
+
+    void traceLabels(ByteString rootId, ByteString traceId, String[] labels, @Nullable AnalysisId analysis) {
+        assert rootId != null;
+        assert traceId != null;
+        ensureConnection(analysis);
+        Trace.Req.Builder req = Trace.Req.newBuilder()
+                .setId(traceId)
+                .setRootId(rootId)
+                .addAllLabels(Arrays.asList(limits.labels(labels)));
+        send(req, analysis);
+    }
+
+    void traceLabels(ByteString rootId, ByteString traceId, LabelSet labelSet, @Nullable AnalysisId analysis) {
+        assert rootId != null;
+        assert traceId != null;
+        if (!limits.fits(labelSet.array())) {
+            traceLabels(rootId, traceId, labelSet.array(), analysis);
+            return;
         }
+        ensureConnection(analysis);
+        Trace.Req.Builder req = labelSet.template().toBuilder()
+                .setId(traceId)
+                .setRootId(rootId);
+        send(req, analysis);
+    }
+
+    void traceEnd(ByteString rootId, ByteString traceId, long endMillis, @Nullable TraceRecord record,
+                  @Nullable AnalysisId analysis) {
+        assert rootId != null;
+        assert traceId != null;
+        ensureConnection(analysis);
+        send(endRequest(rootId, traceId, endMillis, record), analysis);
     }
 
-    void traceEnd(UUID rootId, UUID traceId, long endMillis) {
+    /**
+     * End a trace on behalf of the application, from a thread that must not throw the errors buffered for the
+     * application, which would then never see them.
+     */
+    void traceExpired(ByteString rootId, ByteString traceId, long endMillis, TraceRecord record,
+                      @Nullable AnalysisId analysis) {
         assert rootId != null;
         assert traceId != null;
-        ensureConnection();
-        Trace.Req req = Trace.Req.newBuilder()
-                .setId(toBuf(traceId))
-                .setRootId(toBuf(rootId))
-                .setEnded(endMillis)
-                .build();
+        if (closed) {
+            metrics.dropped();
+            return;
+        }
+        send(endRequest(rootId, traceId, endMillis, record), analysis);
+    }
+
+    /**
+     * Add a garbage collection as a child of the given trace, from the thread that reports collections, which must not
+     * throw the errors buffered for the application. The whole child is sent at once.
+     */
+    void traceCollected(ByteString rootId, ByteString collectionId, ByteString parentId, String[] labels,
+                        long startMillis, long endMillis, @Nullable AnalysisId analysis) {
+        assert rootId != null;
+        assert collectionId != null;
+        if (closed) return;
+        Trace.Req.Builder start = Trace.Req.newBuilder()
+                .setId(collectionId)
+                .setRootId(rootId)
+                .setParentId(parentId)
+                .setName("GC")
+                .setStarted(startMillis);
+        Trace.Req.Builder labelled = Trace.Req.newBuilder()
+                .setId(collectionId)
+                .setRootId(rootId)
+                .addAllLabels(Arrays.asList(limits.labels(labels)));
         synchronized (this) {
-            requestObserver.onNext(req);
+            send(start, analysis);
+            send(labelled, analysis);
+            send(endRequest(rootId, collectionId, endMillis, null), analysis);
         }
     }
 
-    void close() throws Exception {
-        requestObserver.onCompleted();
+    private Trace.Req.Builder endRequest(ByteString rootId, ByteString traceId, long endMillis,
+                                         @Nullable TraceRecord record) {
+        Trace.Req.Builder req = Trace.Req.newBuilder()
+                .setId(traceId)
+                .setRootId(rootId)
+                .setEnded(endMillis);
+        if (record != null) record.addTo(req, limits);
+        return req;
+    }
 
-        try {
-            finishLatch.await(1, TimeUnit.MINUTES);
-        } catch (InterruptedException e) {
-            requestObserver.onError(e);
-            throw e;
+    /**
+     * @return Whether the server currently wants the root trace with the given ID to be sent.
+     */
+    boolean sampled(long rootIdLeastSignificantBits) {
+        return control.admit(rootIdLeastSignificantBits) && limits.admitRoot();
+    }
+
+    /**
+     * Write the events that were waiting for the given analysis, called once the server has created it or failed to.
+     */
+    void analysisResolved(AnalysisId analysis) {
+        if (analysis.isFailed()) metrics.errorBuffered();
+        drainPendingEvents();
+    }
+
+    /**
+     * Wait for the server to acknowledge the events sent so far. Events still waiting for their analysis to be created
+     * are written first, and the flush then waits for the last of them.
+     *
+     * @return A future that completes when the server has acknowledged every event written before it, or fails if the
+     * stream ended with an error or the client was closed first.
+     */
+    synchronized CompletableFuture<Void> flush() {
+        PendingFlush flush = new PendingFlush(pendingEvents.isEmpty() ? sequence : PendingFlush.UNKNOWN);
+        pendingFlushes.add(flush);
+        completeAcknowledgedFlushes();
+        return flush.future;
+    }
+
+    void close(long timeoutNanos) throws Exception {
+        long deadline = System.nanoTime() + timeoutNanos;
+        StreamObserver<Trace.Req> observer;
+        TracingResponseObserver response;
+        synchronized (this) {
+            closed = true;
+            long remaining;
+            while (!pendingEvents.isEmpty() && (remaining = deadline - System.nanoTime()) > 0) {
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            while (!pendingEvents.isEmpty()) {
+                pendingEvents.pop();
+                metrics.dequeued();
+                metrics.dropped();
+            }
+            if (requestObserver == null && !unacknowledged.isEmpty()) {
+                openStream();
+                resendUnacknowledged();
+            }
+            observer = requestObserver;
+            response = responseObserver;
+        }
+        if (observer != null) {
+            observer.onCompleted();
+            try {
+                response.finishLatch.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                observer.onError(e);
+                throw e;
+            } finally {
+                failFlushes(new IllegalStateException("Closed before the server acknowledged the flushed events"));
+            }
+        } else {
+            failFlushes(new IllegalStateException("Closed before the server acknowledged the flushed events"));
         }
 
         throwErrors();
     }
 
-    private void ensureConnection() {
-        if (finishLatch.getCount() == 0) {
+    private void send(Trace.Req.Builder req, @Nullable AnalysisId analysis) {
+        metrics.enqueued();
+        synchronized (this) {
+            if (analysis != null && analysis.isFailed()) {
+                metrics.dequeued();
+                metrics.dropped();
+            } else if (!pendingEvents.isEmpty() || (analysis != null && !analysis.isCreated())) {
+                if (pendingEvents.size() < maxPendingEvents) {
+                    pendingEvents.add(new PendingEvent(req, analysis));
+                } else {
+                    metrics.dequeued();
+                    metrics.dropped();
+                }
+            } else {
+                metrics.dequeued();
+                write(req, analysis);
+            }
+        }
+    }
+
+    private synchronized void drainPendingEvents() {
+        while (!pendingEvents.isEmpty()) {
+            PendingEvent event = pendingEvents.peek();
+            if (event.analysis != null && !event.analysis.isCreated() && !event.analysis.isFailed()) break;
+            pendingEvents.pop();
+            metrics.dequeued();
+            if (event.analysis != null && event.analysis.isFailed()) {
+                metrics.dropped();
+                continue;
+            }
+            try {
+                write(event.req, event.analysis);
+            } catch (RuntimeException e) {
+                errors.add(e);
+                metrics.errorBuffered();
+            }
+        }
+        if (pendingEvents.isEmpty()) {
+            notifyAll();
+            for (PendingFlush flush : pendingFlushes) {
+                if (flush.sequence == PendingFlush.UNKNOWN) flush.sequence = sequence;
+            }
+        }
+        completeAcknowledgedFlushes();
+    }
+
+    private void write(Trace.Req.Builder req, @Nullable AnalysisId analysis) {
+        assert Thread.holdsLock(this);
+        if (req.hasRootStart()) req.getRootStartBuilder().setAnalysisId(analysis.get());
+        Trace.Req event = req.setSequence(++sequence).build();
+        StreamObserver<Trace.Req> observer = requestObserver;
+        if (observer == null) {
+            openStream();
+            observer = requestObserver;
+            if (unacknowledged.isEmpty()) event = event.toBuilder().setSession(session).build();
+            else resendUnacknowledged();
+        }
+        if (unacknowledged.size() == maxUnacknowledgedEvents) {
+            unacknowledged.pop();
+            metrics.evicted();
+        }
+        unacknowledged.add(event);
+        long start = System.nanoTime();
+        observer.onNext(event);
+        metrics.sent(event.getSerializedSize(), System.nanoTime() - start);
+        control.sent();
+        limits.written(event.getSerializedSize());
+    }
+
+    private void openStream() {
+        assert Thread.holdsLock(this);
+        responseObserver = new TracingResponseObserver();
+        requestObserver = serviceStub.stream(responseObserver);
+    }
+
+    private void resendUnacknowledged() {
+        assert Thread.holdsLock(this);
+        StreamObserver<Trace.Req> observer = requestObserver;
+        boolean first = true;
+        // Copied, since an acknowledgement can arrive on this thread while the events are being written
+        for (Trace.Req event : unacknowledged.toArray(new Trace.Req[0])) {
+            observer.onNext(first ? event.toBuilder().setSession(session).build() : event);
+            metrics.retransmitted();
+            first = false;
+        }
+    }
+
+    private synchronized void acknowledged(long ackedSequence) {
+        while (!unacknowledged.isEmpty() && unacknowledged.peek().getSequence() <= ackedSequence) {
+            unacknowledged.pop();
+            metrics.acknowledged();
+        }
+        resendDelayMillis = MIN_RESEND_DELAY_MILLIS;
+        acknowledgedSequence = Math.max(acknowledgedSequence, ackedSequence);
+        completeAcknowledgedFlushes();
+    }
+
+    /**
+     * Forget the stream that ended, so that the next event opens a new one unless the client is closing.
+     */
+    private synchronized void streamEnded(TracingResponseObserver ended) {
+        if (responseObserver != ended || closed) return;
+        requestObserver = null;
+    }
+
+    /**
+     * Resend the unacknowledged events on a new stream after a delay, rather than waiting for the next event, which
+     * may never come. The delay doubles with every failure until the server acknowledges something.
+     */
+    private synchronized void scheduleResend() {
+        if (closed || unacknowledged.isEmpty()) return;
+        long delayMillis = resendDelayMillis;
+        resendDelayMillis = Math.min(resendDelayMillis * 2, MAX_RESEND_DELAY_MILLIS);
+        CompletableFuture.delayedExecutor(delayMillis, TimeUnit.MILLISECONDS).execute(this::resendOnNewStream);
+    }
+
+    private synchronized void resendOnNewStream() {
+        if (closed || requestObserver != null || unacknowledged.isEmpty()) return;
+        openStream();
+        resendUnacknowledged();
+    }
+
+    private synchronized void completeAcknowledgedFlushes() {
+        PendingFlush flush;
+        while ((flush = pendingFlushes.peek()) != null && flush.sequence != PendingFlush.UNKNOWN
+                && flush.sequence <= acknowledgedSequence) {
+            pendingFlushes.pop().future.complete(null);
+        }
+    }
+
+    private synchronized void failFlushes(Throwable error) {
+        while (!pendingFlushes.isEmpty()) {
+            pendingFlushes.pop().future.completeExceptionally(error);
+        }
+    }
+
+    private void ensureConnection(@Nullable AnalysisId analysis) {
+        if (closed) {
+            metrics.dropped();
             errors.add(new RuntimeException("Connection Lost"));
-            throwErrors();
+            metrics.errorBuffered();
         }
+        if (analysis != null && analysis.claimError()) {
+            metrics.errorsThrown(1);
+            throw new RuntimeException(analysis.error());
+        }
+        // Checked without the lock, since this runs for every event and there is almost never an error
+        if (!errors.isEmpty()) throwErrors();
     }
 
     private synchronized void throwErrors() {
         if (errors.peek() != null) {
+            int count = 1;
             RuntimeException ex = new RuntimeException(errors.pop());
             while (errors.peek() != null) {
                 ex.addSuppressed(errors.pop());
+                count++;
             }
+            metrics.errorsThrown(count);
             throw ex;
         }
     }
 
+    /**
+     * The ID of an analysis that is created asynchronously.
+     */
+    static class AnalysisId {
+        private volatile long id;
+        private volatile boolean created;
+        private volatile Throwable error;
+        private final AtomicBoolean errorClaimed = new AtomicBoolean(false);
+
+        void created(long id) {
+            this.id = id;
+            created = true;
+        }
+
+        void failed(Throwable error) {
+            this.error = error;
+        }
+
+        boolean isCreated() {
+            return created;
+        }
+
+        boolean isFailed() {
+            return error != null;
+        }
+
+        long get() {
+            return id;
+        }
+
+        Throwable error() {
+            return error;
+        }
+
+        /**
+         * @return Whether the analysis failed and this caller is the first to claim its error, and should throw it.
+         */
+        boolean claimError() {
+            return error != null && errorClaimed.compareAndSet(false, true);
+        }
+    }
+
+    private static class PendingEvent {
+        private final Trace.Req.Builder req;
+        private final AnalysisId analysis;
+
+        private PendingEvent(Trace.Req.Builder req, @Nullable AnalysisId analysis) {
+            this.req = req;
+            this.analysis = analysis;
+        }
+    }
+
+    /**
+     * A flush waiting for the server to acknowledge the given sequence, which is unknown while earlier events are
+     * still pending.
+     */
+    private static class PendingFlush {
+        private static final long UNKNOWN = -1;
+
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+        private long sequence;
+
+        private PendingFlush(long sequence) {
+            this.sequence = sequence;
+        }
+    }
+
     private class TracingResponseObserver implements StreamObserver<Trace.Res> {
+        private final CountDownLatch finishLatch = new CountDownLatch(1);
 
         @Override
         public void onNext(Trace.Res res) {
+            acknowledged(res.getAckedSequence());
+            if (res.hasControl()) control.apply(res.getControl());
         }
 
         @Override
         public void onError(Throwable throwable) {
             errors.add(throwable);
+            metrics.errorBuffered();
+            streamEnded(this);
             finishLatch.countDown();
+            failFlushes(throwable);
+            scheduleResend();
         }
 
         @Override
         public void onCompleted() {
+            streamEnded(this);
             finishLatch.countDown();
         }
     }
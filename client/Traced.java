@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2022 Vaticle
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.vaticle.factory.tracing.client;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a method to be traced by the Vaticle Factory tracing agent. When the agent is attached, every call to the method
+ * is wrapped in {@link FactoryTracingThreadStatic#traceOnThread(String)}, closing the trace when the method returns or
+ * throws. Without the agent the annotation has no effect.
+ *
+ * The agent reads the annotation from the class file while the class is being loaded. It is also retained at run time,
+ * so that an agent attached to a running JVM can find the classes that are already loaded and declare traced methods.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Traced {
+    /**
+     * @return The trace name, or empty to name the trace after the simple class name and method name, such as
+     * {@code Reasoner.execute}.
+     */
+    String value() default "";
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2022 Vaticle
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.vaticle.factory.tracing.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Self-instrumentation of a tracing client, so that the overhead and loss of tracing can be monitored in production.
+ *
+ * All counters are striped ({@link LongAdder}) so that recording from many application threads does not contend.
+ * Clients that connect to a server register their metrics with the platform MBean server under the
+ * {@code com.vaticle.factory.tracing} domain for as long as they are open.
+ */
+public class TracingMetrics implements TracingMetricsMXBean {
+    private static final Logger LOG = LoggerFactory.getLogger(TracingMetrics.class);
+    private static final String DOMAIN = "com.vaticle.factory.tracing";
+    private static final AtomicInteger CLIENT_COUNT = new AtomicInteger();
+    private static final TracingMetrics NONE = new TracingMetrics();
+    private static final int MAX_ABANDONED_NAMES = 256;
+    private static final String OTHER_NAMES = "(other)";
+
+    private final LongAdder eventsSent = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder queueDepth = new LongAdder();
+    private final LongAdder sendNanos = new LongAdder();
+    private final LongAdder errorsBuffered = new LongAdder();
+    private final LongAdder eventsDropped = new LongAdder();
+    private final LongAdder eventsAcknowledged = new LongAdder();
+    private final LongAdder eventsRetransmitted = new LongAdder();
+    private final LongAdder eventsEvicted = new LongAdder();
+    private final LongAdder payloadsTruncated = new LongAdder();
+    private final LongAdder recordEntriesDropped = new LongAdder();
+    private final LongAdder tracesSampledOut = new LongAdder();
+    private final LongAdder tracesRejected = new LongAdder();
+    private final LongAdder tracesUntracked = new LongAdder();
+    private final ConcurrentHashMap<String, LongAdder> tracesAbandoned = new ConcurrentHashMap<>();
+
+    private ObjectName objectName;
+
+    TracingMetrics() {
+    }
+
+    static TracingMetrics none() {
+        return NONE;
+    }
+
+    /**
+     * @return The number of events written to the stream.
+     */
+    @Override
+    public long getEventsSent() {
+        return eventsSent.sum();
+    }
+
+    /**
+     * @return The serialized size in bytes of the events written to the stream.
+     */
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    /**
+     * @return The number of events currently waiting to be written to the stream, either buffered until their analysis
+     * is created or held by threads waiting for their turn to write.
+     */
+    @Override
+    public long getQueueDepth() {
+        return queueDepth.sum();
+    }
+
+    /**
+     * @return The total time spent handing events to the stream, in nanoseconds.
+     */
+    @Override
+    public long getSendNanos() {
+        return sendNanos.sum();
+    }
+
+    /**
+     * @return The number of errors received from the server that have not been thrown to the user yet.
+     */
+    @Override
+    public long getErrorsBuffered() {
+        return errorsBuffered.sum();
+    }
+
+    /**
+     * @return The number of events that were discarded rather than written to the stream, such as those of analyses
+     * that could not be created, those beyond the pending events, and those sent after the client was closed.
+     */
+    @Override
+    public long getEventsDropped() {
+        return eventsDropped.sum();
+    }
+
+    /**
+     * @return The number of events the server has acknowledged receiving.
+     */
+    @Override
+    public long getEventsAcknowledged() {
+        return eventsAcknowledged.sum();
+    }
+
+    /**
+     * @return The number of events written again on a new stream because the server had not acknowledged them when
+     * the previous stream ended.
+     */
+    @Override
+    public long getEventsRetransmitted() {
+        return eventsRetransmitted.sum();
+    }
+
+    /**
+     * @return The number of events that were forgotten before the server acknowledged them, because too many events
+     * were unacknowledged. These cannot be written again if the stream fails.
+     */
+    @Override
+    public long getEventsEvicted() {
+        return eventsEvicted.sum();
+    }
+
+    /**
+     * @return The number of data, labels and end events that were truncated because they exceeded the payload limits.
+     */
+    @Override
+    public long getPayloadsTruncated() {
+        return payloadsTruncated.sum();
+    }
+
+    /**
+     * @return The number of events, counters and attributes of traces that were left out of their end events because
+     * they exceeded the maximum count. Each end event that left any out is also counted as truncated.
+     */
+    @Override
+    public long getRecordEntriesDropped() {
+        return recordEntriesDropped.sum();
+    }
+
+    /**
+     * @return The number of root traces that were not sent, together with their descendants, because the server asked
+     * for fewer traces, limited the rate of events or paused the client, or because the byte budget was used up.
+     */
+    @Override
+    public long getTracesSampledOut() {
+        return tracesSampledOut.sum();
+    }
+
+    /**
+     * @return The number of root traces that were not sent, together with their descendants, because the events
+     * written in the current second had used up the budget of bytes per second. These are also counted as sampled out.
+     */
+    @Override
+    public long getTracesRejected() {
+        return tracesRejected.sum();
+    }
+
+    /**
+     * @return The number of traces that were not ended by the application and were expired, by trace name. Only the
+     * first 256 names are counted separately, and the rest together under "(other)".
+     */
+    @Override
+    public Map<String, Long> getTracesAbandoned() {
+        Map<String, Long> abandoned = new TreeMap<>();
+        tracesAbandoned.forEach((name, count) -> abandoned.put(name, count.sum()));
+        return abandoned;
+    }
+
+    /**
+     * @return The number of traces that could not be tracked for expiry because the table of open traces was full.
+     */
+    @Override
+    public long getTracesUntracked() {
+        return tracesUntracked.sum();
+    }
+
+    void enqueued() {
+        queueDepth.increment();
+    }
+
+    void dequeued() {
+        queueDepth.decrement();
+    }
+
+    void sent(int bytes, long nanos) {
+        eventsSent.increment();
+        bytesSent.add(bytes);
+        sendNanos.add(nanos);
+    }
+
+    void dropped() {
+        eventsDropped.increment();
+    }
+
+    void acknowledged() {
+        eventsAcknowledged.increment();
+    }
+
+    void retransmitted() {
+        eventsRetransmitted.increment();
+    }
+
+    void evicted() {
+        eventsEvicted.increment();
+    }
+
+    void truncated() {
+        payloadsTruncated.increment();
+    }
+
+    void recordEntriesDropped(int count) {
+        recordEntriesDropped.add(count);
+    }
+
+    void sampledOut() {
+        tracesSampledOut.increment();
+    }
+
+    void rejected() {
+        tracesRejected.increment();
+    }
+
+    void abandoned(String name) {
+        LongAdder count = tracesAbandoned.get(name);
+        if (count == null) {
+            // Names can be generated by the application, so they are not allowed to grow without bound
+            String key = tracesAbandoned.size() < MAX_ABANDONED_NAMES ? name : OTHER_NAMES;
+            count = tracesAbandoned.computeIfAbsent(key, n -> new LongAdder());
+        }
+        count.increment();
+    }
+
+    void untracked() {
+        tracesUntracked.increment();
+    }
+
+    void errorBuffered() {
+        errorsBuffered.increment();
+    }
+
+    void errorsThrown(int count) {
+        errorsBuffered.add(-count);
+    }
+
+    synchronized void register(Class<? extends FactoryTracing> client) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            objectName = new ObjectName(DOMAIN + ":type=" + client.getSimpleName() + ",id=" + CLIENT_COUNT.incrementAndGet());
+            server.registerMBean(this, objectName);
+        } catch (JMException e) {
+            LOG.warn("Failed to register tracing metrics with JMX", e);
+            objectName = null;
+        }
+    }
+
+    synchronized void unregister() {
+        if (objectName == null) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            LOG.warn("Failed to unregister tracing metrics from JMX", e);
+        } finally {
+            objectName = null;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2022 Vaticle
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.vaticle.factory.tracing.client;
+
+import java.util.Map;
+
+/**
+ * The JMX view of {@link TracingMetrics}.
+ */
+public interface TracingMetricsMXBean {
+
+    long getEventsSent();
+
+    long getBytesSent();
+
+    long getQueueDepth();
+
+    long getSendNanos();
+
+    long getErrorsBuffered();
+
+    long getEventsDropped();
+
+    long getEventsAcknowledged();
+
+    long getEventsRetransmitted();
+
+    long getEventsEvicted();
+
+    long getPayloadsTruncated();
+
+    long getRecordEntriesDropped();
+
+    long getTracesSampledOut();
+
+    long getTracesRejected();
+
+    Map<String, Long> getTracesAbandoned();
+
+    long getTracesUntracked();
+}
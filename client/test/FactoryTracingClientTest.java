@@ -21,11 +21,16 @@
 
 package com.vaticle.factory.tracing.client.test;
 
+import com.google.protobuf.ByteString;
 import com.vaticle.factory.tracing.client.FactoryTracing;
+import com.vaticle.factory.tracing.client.FactoryTracingAggregating;
 import com.vaticle.factory.tracing.client.FactoryTracingStandard;
+import com.vaticle.factory.tracing.client.FactoryTracingThreadStatic;
+import com.vaticle.factory.tracing.client.LabelSet;
 import com.vaticle.factory.tracing.protocol.TracingProto;
 import com.vaticle.factory.tracing.protocol.TracingServiceGrpc;
 import io.grpc.ManagedChannel;
+import io.grpc.Status;
 import io.grpc.inprocess.InProcessChannelBuilder;
 import io.grpc.inprocess.InProcessServerBuilder;
 import io.grpc.stub.StreamObserver;
@@ -35,11 +40,29 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.fail;
 import static org.mockito.AdditionalAnswers.delegatesTo;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 public class FactoryTracingClientTest {
@@ -52,20 +75,99 @@ public class FactoryTracingClientTest {
                     new TracingServiceGrpc.TracingServiceImplBase() {
                         @Override
                         public void create(TracingProto.Analysis.Req request, StreamObserver<TracingProto.Analysis.Res> responseObserver) {
+                            if (request.getName().equals("rejected")) {
+                                responseObserver.onError(Status.INVALID_ARGUMENT.asRuntimeException());
+                                return;
+                            }
                             responseObserver.onNext(TracingProto.Analysis.Res.newBuilder()
                                                             .setAnalysisId(Long.MAX_VALUE)
                                                             .build());
                             responseObserver.onCompleted();
                         }
+
+                        @Override
+                        public StreamObserver<TracingProto.Trace.Req> stream(StreamObserver<TracingProto.Trace.Res> responseObserver) {
+                            return new StreamObserver<TracingProto.Trace.Req>() {
+                                @Override
+                                public void onNext(TracingProto.Trace.Req req) {
+                                    traces.add(req);
+                                    if (failingNextEvent) {
+                                        failingNextEvent = false;
+                                        responseObserver.onError(Status.UNAVAILABLE.asRuntimeException());
+                                    } else if (acknowledging) {
+                                        responseObserver.onNext(TracingProto.Trace.Res.newBuilder()
+                                                                        .setAckedSequence(req.getSequence())
+                                                                        .build());
+                                    }
+                                    TracingProto.Trace.Control control = nextControl;
+                                    if (control != null) {
+                                        nextControl = null;
+                                        responseObserver.onNext(TracingProto.Trace.Res.newBuilder()
+                                                                        .setControl(control)
+                                                                        .build());
+                                    }
+                                }
+
+                                @Override
+                                public void onError(Throwable throwable) {
+                                }
+
+                                @Override
+                                public void onCompleted() {
+                                    if (hangingOnClose) return;
+                                    if (!traces.isEmpty()) {
+                                        responseObserver.onNext(TracingProto.Trace.Res.newBuilder()
+                                                                        .setAckedSequence(traces.get(traces.size() - 1).getSequence())
+                                                                        .build());
+                                    }
+                                    responseObserver.onCompleted();
+                                }
+                            };
+                        }
+
+                        @Override
+                        public StreamObserver<TracingProto.Histogram.Req> histogram(StreamObserver<TracingProto.Histogram.Res> responseObserver) {
+                            return new StreamObserver<TracingProto.Histogram.Req>() {
+                                @Override
+                                public void onNext(TracingProto.Histogram.Req req) {
+                                    if (failingNextHistogram) {
+                                        failingNextHistogram = false;
+                                        responseObserver.onError(Status.UNAVAILABLE.asRuntimeException());
+                                        return;
+                                    }
+                                    histograms.add(req);
+                                }
+
+                                @Override
+                                public void onError(Throwable throwable) {
+                                }
+
+                                @Override
+                                public void onCompleted() {
+                                    responseObserver.onNext(TracingProto.Histogram.Res.getDefaultInstance());
+                                    responseObserver.onCompleted();
+                                }
+                            };
+                        }
                     }
             ));
 
+    private final List<TracingProto.Trace.Req> traces = new CopyOnWriteArrayList<>();
+    private final List<TracingProto.Histogram.Req> histograms = new CopyOnWriteArrayList<>();
+    private volatile boolean acknowledging = true;
+    private volatile boolean failingNextEvent;
+    private volatile boolean failingNextHistogram;
+    private volatile boolean hangingOnClose;
+    private volatile TracingProto.Trace.Control nextControl;
+
+    private String serverName;
+
     private FactoryTracing client;
 
     @Before
     public void setUp() throws Exception {
         // Generate a unique in-process server name.
-        String serverName = InProcessServerBuilder.generateName();
+        serverName = InProcessServerBuilder.generateName();
 
         // Create a server, add service, start, and register for automatic graceful shutdown.
         grpcCleanup.register(InProcessServerBuilder
@@ -85,7 +187,7 @@ public class FactoryTracingClientTest {
 
         ArgumentCaptor<TracingProto.Analysis.Req> requestCaptor = ArgumentCaptor.forClass(TracingProto.Analysis.Req.class);
 
-        verify(serviceImpl).create(requestCaptor.capture(), any());
+        verify(serviceImpl, timeout(1000)).create(requestCaptor.capture(), any());
 
         TracingProto.Analysis.Req req = requestCaptor.getValue();
 
@@ -94,4 +196,560 @@ public class FactoryTracingClientTest {
         assertThat(req.getCommit(), equalTo("commit"));
         assertThat(req.getName(), equalTo("analysis"));
     }
+
+    @Test
+    public void streamNumbersEventsAndTrimsAcknowledged() throws Exception {
+        FactoryTracing.Trace root = client.analysis("owner", "repo", "commit", "analysis")
+                .trace("root", "tracker", 0);
+        root.trace("child").end();
+        root.end();
+        client.close();
+
+        assertThat(traces.size(), equalTo(4));
+        for (int i = 0; i < traces.size(); i++) {
+            assertThat(traces.get(i).getSequence(), equalTo(i + 1L));
+            assertThat(traces.get(i).getSession().isEmpty(), equalTo(i != 0));
+        }
+        assertThat(client.metrics().getEventsSent(), equalTo(4L));
+        assertThat(client.metrics().getEventsAcknowledged(), equalTo(4L));
+        assertThat(client.metrics().getEventsRetransmitted(), equalTo(0L));
+    }
+
+    @Test
+    public void failedAnalysisErrorIsThrownOnlyOnItsOwnTraces() throws Exception {
+        FactoryTracing.Analysis rejected = client.analysis("owner", "repo", "commit", "rejected");
+        FactoryTracing.Analysis accepted = client.analysis("owner", "repo", "commit", "analysis");
+
+        accepted.trace("root", "tracker", 0).end();
+        try {
+            rejected.trace("root", "tracker", 0);
+            fail("Expected the rejected analysis to throw");
+        } catch (RuntimeException e) {
+            assertThat(e.getCause().getMessage(), equalTo("INVALID_ARGUMENT"));
+        }
+        accepted.trace("root", "tracker", 1).end();
+        client.close();
+
+        assertThat(traces.size(), equalTo(4));
+    }
+
+    @Test
+    public void resendsUnacknowledgedEventsWhenStreamFails() throws Exception {
+        failingNextEvent = true;
+        client.analysis("owner", "repo", "commit", "analysis").trace("root", "tracker", 0);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        // Counted once the event is written, which is after the server has received it
+        while (client.metrics().getEventsRetransmitted() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertThat(traces.size(), equalTo(2));
+        assertThat(traces.get(1).getSequence(), equalTo(1L));
+        assertThat(traces.get(1).getSession(), equalTo(traces.get(0).getSession()));
+        assertThat(client.metrics().getEventsRetransmitted(), equalTo(1L));
+        try {
+            client.close();
+            fail("Expected the stream failure to be thrown");
+        } catch (RuntimeException e) {
+            assertThat(e.getCause().getMessage(), equalTo("UNAVAILABLE"));
+        }
+    }
+
+    @Test
+    public void pausingStopsNewRootsButCompletesStartedOnes() throws Exception {
+        nextControl = TracingProto.Trace.Control.newBuilder().setPaused(true).build();
+        FactoryTracing.Analysis analysis = client.analysis("owner", "repo", "commit", "analysis");
+
+        // The server pauses the client in response to the first event
+        FactoryTracing.Trace started = analysis.trace("started", "tracker", 0);
+        started.trace("child").end();
+        started.end();
+        FactoryTracing.Trace paused = analysis.trace("paused", "tracker", 0);
+        paused.trace("child").end();
+        paused.end();
+        client.close();
+
+        assertThat(traces.size(), equalTo(4));
+        assertThat(traces.get(0).getName(), equalTo("started"));
+        assertThat(traces.get(3).getId(), equalTo(traces.get(0).getId()));
+        assertThat(client.metrics().getTracesSampledOut(), equalTo(1L));
+        assertThat(client.metrics().getEventsDropped(), equalTo(0L));
+    }
+
+    @Test
+    public void dataSupplierIsNotCalledForTracesThatAreNotSent() throws Exception {
+        Supplier<String> failing = () -> {
+            throw new AssertionError("The data was computed for a trace that is not sent");
+        };
+        FactoryTracing.createNoOp().analysis("owner", "repo", "commit", "analysis")
+                .trace("root", "tracker", 0)
+                .data(failing)
+                .end();
+        // The thread static tracing is not enabled in this test, so it hands out its no-op trace
+        try (FactoryTracingThreadStatic.ThreadTrace trace = FactoryTracingThreadStatic.traceOnThread("root")) {
+            trace.data(failing);
+        }
+
+        nextControl = TracingProto.Trace.Control.newBuilder().setPaused(true).build();
+        FactoryTracing.Analysis analysis = client.analysis("owner", "repo", "commit", "analysis");
+        analysis.trace("started", "tracker", 0).end();
+        FactoryTracing.Trace paused = analysis.trace("paused", "tracker", 0).data(failing);
+        paused.trace("child").data(failing).end();
+        paused.end();
+        client.close();
+
+        assertThat(client.metrics().getTracesSampledOut(), equalTo(1L));
+        assertThat(traces.size(), equalTo(2));
+    }
+
+    @Test
+    public void rateLimitAdmitsWholeRoots() throws Exception {
+        nextControl = TracingProto.Trace.Control.newBuilder().setMaxEventsPerSecond(2).build();
+        FactoryTracing.Analysis analysis = client.analysis("owner", "repo", "commit", "analysis");
+
+        // The first root is admitted before the limit arrives, and sends more events than it allows
+        FactoryTracing.Trace admitted = analysis.trace("admitted", "tracker", 0);
+        admitted.trace("child").end();
+        admitted.trace("child").end();
+        admitted.end();
+        FactoryTracing.Trace limited = analysis.trace("limited", "tracker", 0);
+        limited.trace("child").end();
+        limited.end();
+        client.close();
+
+        assertThat(traces.size(), equalTo(6));
+        assertThat(traces.get(5).getId(), equalTo(traces.get(0).getId()));
+        assertThat(client.metrics().getTracesSampledOut(), equalTo(1L));
+    }
+
+    @Test
+    public void payloadsBeyondTheLimitsAreTruncated() throws Exception {
+        ManagedChannel channel = grpcCleanup.register(
+                InProcessChannelBuilder.forName(serverName).directExecutor().build());
+        FactoryTracing limited = FactoryTracing.builder()
+                .channel(channel)
+                .limitPayloads(8, 3, 4)
+                .build();
+
+        FactoryTracing.Trace root = limited.analysis("owner", "repo", "commit", "analysis")
+                .trace("root", "tracker", 0);
+        root.data("0123456789");
+        // The eighth character starts a surrogate pair, which is cut before rather than split
+        root.data("0123456\uD83D\uDE00");
+        root.labels("a", "bb", "cc", "d", "e");
+        root.labels("abcdefg", "abc");
+        root.labels("a", "bb", "ccc");
+        root.end();
+        limited.close();
+
+        assertThat(traces.get(1).getData(), equalTo("01234567...[truncated 2 chars]"));
+        assertThat(traces.get(2).getData(), equalTo("0123456...[truncated 2 chars]"));
+        assertThat(traces.get(3).getLabelsList(), equalTo(Arrays.asList("a", "bb", "[3 more labels]")));
+        assertThat(traces.get(4).getLabelsList(), equalTo(Arrays.asList("abcd...[truncated 3 chars]", "abc")));
+        assertThat(traces.get(5).getLabelsList(), equalTo(Arrays.asList("a", "bb", "ccc")));
+        assertThat(limited.metrics().getPayloadsTruncated(), equalTo(4L));
+    }
+
+    @Test
+    public void recordsBeyondTheLimitsAreTruncated() throws Exception {
+        ManagedChannel channel = grpcCleanup.register(
+                InProcessChannelBuilder.forName(serverName).directExecutor().build());
+        FactoryTracing limited = FactoryTracing.builder()
+                .channel(channel)
+                .limitRecords(2, 2, 4)
+                .build();
+
+        FactoryTracing.Trace root = limited.analysis("owner", "repo", "commit", "analysis")
+                .trace("root", "tracker", 0);
+        root.event("first").event("second").event("third");
+        root.count("rows", 1).count("columns", 2).count("cells", 3);
+        root.attribute("string", "abcdefg")
+                .attribute("bytes", new byte[]{1, 2, 3, 4, 5, 6})
+                .attribute("dropped", true);
+        root.end();
+        root = limited.analysis("owner", "repo", "commit", "analysis").trace("within", "tracker", 0);
+        root.event("one").count("two", 2).attribute("key", "abcd").end();
+        limited.close();
+
+        TracingProto.Trace.Req end = traces.get(1);
+        assertThat(end.getEventsCount(), equalTo(2));
+        assertThat(end.getEvents(0).getName(), equalTo("firs...[truncated 1 chars]"));
+        assertThat(end.getEvents(1).getName(), equalTo("seco...[truncated 2 chars]"));
+        assertThat(end.getCountersCount(), equalTo(2));
+        assertThat(end.getCounters(0).getName(), equalTo("rows"));
+        assertThat(end.getCounters(1).getName(), equalTo("colu...[truncated 3 chars]"));
+        assertThat(end.getAttributesCount(), equalTo(2));
+        assertThat(end.getAttributes(0).getKey(), equalTo("stri...[truncated 2 chars]"));
+        assertThat(end.getAttributes(0).getStringValue(), equalTo("abcd...[truncated 3 chars]"));
+        assertThat(end.getAttributes(1).getKey(), equalTo("byte...[truncated 1 chars]"));
+        assertThat(end.getAttributes(1).getBytesValue(), equalTo(ByteString.copyFrom(new byte[]{1, 2, 3, 4})));
+        TracingProto.Trace.Req within = traces.get(3);
+        assertThat(within.getEvents(0).getName(), equalTo("one"));
+        assertThat(within.getCounters(0).getName(), equalTo("two"));
+        assertThat(within.getAttributes(0).getStringValue(), equalTo("abcd"));
+        assertThat(limited.metrics().getPayloadsTruncated(), equalTo(1L));
+        assertThat(limited.metrics().getRecordEntriesDropped(), equalTo(3L));
+    }
+
+    @Test
+    public void attributesAreSentWithTheirTypesOnTheEndEvent() throws Exception {
+        FactoryTracing.Trace root = client.analysis("owner", "repo", "commit", "analysis")
+                .trace("root", "tracker", 0);
+        root.attribute("int", 42L)
+                .attribute("double", 0.5)
+                .attribute("bool", true)
+                .attribute("bytes", new byte[]{1, 2, 3})
+                .attribute("string", "value")
+                .attribute("replaced", "first")
+                // A later value replaces the earlier one in place, even of another type
+                .attribute("replaced", 7L)
+                .end();
+        client.close();
+
+        TracingProto.Trace.Req end = traces.get(1);
+        assertThat(end.getAttributesCount(), equalTo(6));
+        assertThat(end.getAttributes(0).getKey(), equalTo("int"));
+        assertThat(end.getAttributes(0).getIntValue(), equalTo(42L));
+        assertThat(end.getAttributes(1).getKey(), equalTo("double"));
+        assertThat(end.getAttributes(1).getDoubleValue(), equalTo(0.5));
+        assertThat(end.getAttributes(2).getKey(), equalTo("bool"));
+        assertThat(end.getAttributes(2).getBoolValue(), equalTo(true));
+        assertThat(end.getAttributes(3).getKey(), equalTo("bytes"));
+        assertThat(end.getAttributes(3).getBytesValue(), equalTo(ByteString.copyFrom(new byte[]{1, 2, 3})));
+        assertThat(end.getAttributes(4).getKey(), equalTo("string"));
+        assertThat(end.getAttributes(4).getStringValue(), equalTo("value"));
+        assertThat(end.getAttributes(5).getKey(), equalTo("replaced"));
+        assertThat(end.getAttributes(5).getValueCase(), equalTo(TracingProto.Trace.Req.Attribute.ValueCase.INTVALUE));
+        assertThat(end.getAttributes(5).getIntValue(), equalTo(7L));
+    }
+
+    @Test
+    public void countersAreSummedByName() throws Exception {
+        FactoryTracing.Trace root = client.analysis("owner", "repo", "commit", "analysis")
+                .trace("root", "tracker", 0);
+        root.count("rows", 3).count("bytes", 100).count("rows", 4).count("rows", -2);
+        root.end();
+        client.close();
+
+        TracingProto.Trace.Req end = traces.get(1);
+        assertThat(end.getCountersCount(), equalTo(2));
+        assertThat(end.getCounters(0).getName(), equalTo("rows"));
+        assertThat(end.getCounters(0).getValue(), equalTo(5L));
+        assertThat(end.getCounters(1).getName(), equalTo("bytes"));
+        assertThat(end.getCounters(1).getValue(), equalTo(100L));
+    }
+
+    @Test
+    public void eventsAreSentWithTheirOffsetsFromTheStart() throws Exception {
+        long start = System.nanoTime();
+        FactoryTracing.Trace root = client.analysis("owner", "repo", "commit", "analysis")
+                .trace("root", "tracker", 0);
+        root.event("first");
+        Thread.sleep(5);
+        root.event("second");
+        long elapsed = System.nanoTime() - start;
+        root.end();
+        client.close();
+
+        TracingProto.Trace.Req end = traces.get(1);
+        assertThat(end.getEventsCount(), equalTo(2));
+        assertThat(end.getEvents(0).getName(), equalTo("first"));
+        assertThat(end.getEvents(1).getName(), equalTo("second"));
+        assertThat(end.getEvents(1).getOffset() - end.getEvents(0).getOffset(), greaterThanOrEqualTo(5_000_000L));
+        assertThat(end.getEvents(1).getOffset(), lessThanOrEqualTo(elapsed));
+    }
+
+    @Test
+    public void labelSetsAreSentAsTheirLabels() throws Exception {
+        LabelSet labelSet = LabelSet.of("first", "second");
+
+        FactoryTracing.Trace root = client.analysis("owner", "repo", "commit", "analysis")
+                .trace("root", "tracker", 0);
+        root.labels(labelSet);
+        root.trace("child").labels(labelSet).end();
+        root.end();
+        client.close();
+
+        assertThat(traces.get(1).getLabelsList(), equalTo(Arrays.asList("first", "second")));
+        assertThat(traces.get(1).getId(), equalTo(traces.get(0).getId()));
+        assertThat(traces.get(3).getLabelsList(), equalTo(Arrays.asList("first", "second")));
+        assertThat(traces.get(3).getId(), equalTo(traces.get(2).getId()));
+        assertThat(traces.get(3).getRootId(), equalTo(traces.get(0).getId()));
+    }
+
+    @Test
+    public void labelSetsBeyondTheLimitsAreTruncated() throws Exception {
+        ManagedChannel channel = grpcCleanup.register(
+                InProcessChannelBuilder.forName(serverName).directExecutor().build());
+        FactoryTracing limited = FactoryTracing.builder()
+                .channel(channel)
+                .limitPayloads(8, 3, 4)
+                .build();
+
+        FactoryTracing.Trace root = limited.analysis("owner", "repo", "commit", "analysis")
+                .trace("root", "tracker", 0);
+        root.labels(LabelSet.of("a", "bb", "cc", "d"));
+        root.labels(LabelSet.of("abcdefg"));
+        root.labels(LabelSet.of("a", "bb", "ccc"));
+        root.end();
+        limited.close();
+
+        assertThat(traces.get(1).getLabelsList(), equalTo(Arrays.asList("a", "bb", "[2 more labels]")));
+        assertThat(traces.get(2).getLabelsList(), equalTo(Collections.singletonList("abcd...[truncated 3 chars]")));
+        assertThat(traces.get(3).getLabelsList(), equalTo(Arrays.asList("a", "bb", "ccc")));
+        assertThat(limited.metrics().getPayloadsTruncated(), equalTo(2L));
+    }
+
+    @Test
+    public void byteBudgetAdmitsWholeRootsUntilTheNextSecond() throws Exception {
+        ManagedChannel channel = grpcCleanup.register(
+                InProcessChannelBuilder.forName(serverName).directExecutor().build());
+        FactoryTracing budgeted = FactoryTracing.builder()
+                .channel(channel)
+                .maxBytesPerSecond(1000)
+                .build();
+        FactoryTracing.Analysis analysis = budgeted.analysis("owner", "repo", "commit", "analysis");
+
+        // Roots are admitted until their events have used up the budget, and the last one overshoots it
+        for (int i = 0; i < 100 && budgeted.metrics().getTracesRejected() == 0; i++) {
+            FactoryTracing.Trace root = analysis.trace("root", "tracker", i);
+            root.trace("child").end();
+            root.end();
+        }
+        assertThat(budgeted.metrics().getTracesRejected(), equalTo(1L));
+        int sent = traces.size();
+
+        // The overshoot is less than a second's budget, so the next second admits roots again
+        Thread.sleep(1100);
+        FactoryTracing.Trace late = analysis.trace("late", "tracker", 0);
+        late.end();
+        budgeted.close();
+
+        assertThat(traces.size(), equalTo(sent + 2));
+        assertThat(budgeted.metrics().getTracesRejected(), equalTo(1L));
+        assertThat(budgeted.metrics().getTracesSampledOut(), equalTo(1L));
+        for (TracingProto.Trace.Req req : traces) {
+            if (req.hasRootStart()) {
+                assertThat(traces.stream().anyMatch(end -> end.getId().equals(req.getId()) && end.getEnded() != 0),
+                           equalTo(true));
+            }
+        }
+    }
+
+    @Test
+    public void flushWaitsForAcknowledgement() throws Exception {
+        acknowledging = false;
+        FactoryTracing.Trace root = client.analysis("owner", "repo", "commit", "analysis")
+                .trace("root", "tracker", 0);
+        root.end();
+        CompletableFuture<Void> flushed = client.flush();
+        assertThat(flushed.isDone(), equalTo(false));
+
+        // The server acknowledges everything once the stream completes
+        client.close();
+
+        assertThat(flushed.isDone(), equalTo(true));
+        assertThat(flushed.isCompletedExceptionally(), equalTo(false));
+    }
+
+    @Test
+    public void closeAsyncCompletesWithinItsDeadline() throws Exception {
+        hangingOnClose = true;
+        client.analysis("owner", "repo", "commit", "analysis").trace("root", "tracker", 0).end();
+
+        long start = System.nanoTime();
+        CompletableFuture<Void> closed = client.closeAsync(Duration.ofMillis(200));
+        try {
+            closed.get(5, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            // the server never finished the stream, which may be reported as an error
+        }
+
+        assertThat(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2), equalTo(true));
+    }
+
+    @Test
+    public void secondCloseIsANoOp() throws Exception {
+        client.analysis("owner", "repo", "commit", "analysis").trace("root", "tracker", 0).end();
+        client.close();
+        int sent = traces.size();
+
+        client.close();
+        CompletableFuture<Void> closed = client.closeAsync(Duration.ofSeconds(1));
+
+        assertThat(closed.isDone(), equalTo(true));
+        assertThat(closed.isCompletedExceptionally(), equalTo(false));
+        assertThat(traces.size(), equalTo(sent));
+        verify(serviceImpl, times(1)).stream(any());
+    }
+
+    @Test
+    public void expiresTracesThatAreNotEnded() throws Exception {
+        ManagedChannel channel = grpcCleanup.register(
+                InProcessChannelBuilder.forName(serverName).directExecutor().build());
+        FactoryTracing expiring = FactoryTracing.builder()
+                .channel(channel)
+                .expireOpenTraces(Duration.ofMillis(50), 16)
+                .build();
+
+        FactoryTracing.Trace root = expiring.analysis("owner", "repo", "commit", "analysis")
+                .trace("root", "tracker", 0);
+        root.trace("forgotten");
+        root.end();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (expiring.metrics().getTracesAbandoned().isEmpty() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        expiring.close();
+
+        assertThat(expiring.metrics().getTracesAbandoned(), equalTo(Collections.singletonMap("forgotten", 1L)));
+        TracingProto.Trace.Req expired = traces.get(traces.size() - 1);
+        assertThat(expired.getId(), equalTo(traces.get(1).getId()));
+        assertThat(expired.getAttributes(0).getKey(), equalTo("abandoned"));
+        assertThat(expired.getAttributes(0).getBoolValue(), equalTo(true));
+    }
+
+    @Test
+    public void garbageCollectionsAreNotSentAfterTheirRootEnds() throws Exception {
+        ManagedChannel channel = grpcCleanup.register(
+                InProcessChannelBuilder.forName(serverName).directExecutor().build());
+        FactoryTracing correlating = FactoryTracing.builder()
+                .channel(channel)
+                .correlateGcPauses()
+                .build();
+        FactoryTracing.Analysis analysis = correlating.analysis("owner", "repo", "commit", "analysis");
+
+        // Collections are reported on another thread, while roots keep ending
+        AtomicBoolean collecting = new AtomicBoolean(true);
+        Thread collector = new Thread(() -> {
+            while (collecting.get()) System.gc();
+        });
+        collector.start();
+        try {
+            for (int i = 0; i < 200; i++) {
+                FactoryTracing.Trace root = analysis.trace("root", "tracker", i);
+                Thread.sleep(2);
+                root.end();
+            }
+        } finally {
+            collecting.set(false);
+            collector.join();
+        }
+        correlating.close();
+
+        Set<ByteString> endedRoots = new HashSet<>();
+        int collections = 0;
+        for (TracingProto.Trace.Req req : traces) {
+            if (req.hasRootStart()) continue;
+            assertThat(endedRoots.contains(req.getRootId()), equalTo(false));
+            if (req.getName().equals("GC")) collections++;
+            if (req.getEnded() != 0 && req.getId().equals(req.getRootId())) endedRoots.add(req.getRootId());
+        }
+        assertThat(endedRoots.size(), equalTo(200));
+        assertThat(collections > 0, equalTo(true));
+    }
+
+    @Test
+    public void measuresThreadResourcesOfTracesEndedOnTheirOwnThread() throws Exception {
+        ManagedChannel channel = grpcCleanup.register(
+                InProcessChannelBuilder.forName(serverName).directExecutor().build());
+        FactoryTracing measuring = FactoryTracing.builder()
+                .channel(channel)
+                .measureThreadResources()
+                .build();
+        FactoryTracing.Analysis analysis = measuring.analysis("owner", "repo", "commit", "analysis");
+
+        FactoryTracing.Trace sameThread = analysis.trace("same thread", "tracker", 0);
+        byte[][] allocated = new byte[64][];
+        for (int i = 0; i < allocated.length; i++) allocated[i] = new byte[1024];
+        sameThread.end();
+        FactoryTracing.Trace otherThread = analysis.trace("other thread", "tracker", 1);
+        Thread ender = new Thread(otherThread::end);
+        ender.start();
+        ender.join();
+        measuring.close();
+
+        assertThat(traces.size(), equalTo(4));
+        TracingProto.Trace.Req measured = traces.get(1);
+        assertThat(measured.getThreadId(), equalTo(Thread.currentThread().getId()));
+        assertThat(measured.hasCpuNanos(), equalTo(true));
+        assertThat(measured.getAllocatedBytes().getValue() >= 64 * 1024, equalTo(true));
+        TracingProto.Trace.Req unmeasured = traces.get(3);
+        assertThat(unmeasured.getThreadId(), equalTo(0L));
+        assertThat(unmeasured.hasCpuNanos(), equalTo(false));
+        assertThat(unmeasured.hasAllocatedBytes(), equalTo(false));
+    }
+
+    @Test
+    public void aggregatingSendsHistogramsInsteadOfTraces() throws Exception {
+        ManagedChannel channel = grpcCleanup.register(
+                InProcessChannelBuilder.forName(serverName).directExecutor().build());
+        FactoryTracing aggregating = new FactoryTracingAggregating(channel, 1, TimeUnit.HOURS);
+
+        FactoryTracing.Trace root = aggregating.analysis("owner", "repo", "commit", "analysis")
+                .trace("root", "tracker", 0);
+        root.trace("child").end();
+        root.trace("child").end();
+        root.end();
+        aggregating.close();
+
+        assertThat(histograms.size(), equalTo(2));
+        TracingProto.Histogram.Req rootHistogram = histograms.get(0);
+        assertThat(rootHistogram.getAnalysisId(), equalTo(Long.MAX_VALUE));
+        assertThat(rootHistogram.getTracker(), equalTo("tracker"));
+        assertThat(rootHistogram.getPathList(), equalTo(Collections.singletonList("root")));
+        assertThat(rootHistogram.getCount(), equalTo(1L));
+        TracingProto.Histogram.Req childHistogram = histograms.get(1);
+        assertThat(childHistogram.getPathList(), equalTo(Arrays.asList("root", "child")));
+        assertThat(childHistogram.getCount(), equalTo(2L));
+        assertThat(aggregating.metrics().getEventsSent(), equalTo(2L));
+        assertThat(aggregating.metrics().getEventsDropped(), equalTo(0L));
+    }
+
+    @Test
+    public void aggregatingKeepsSnapshotsThatFailToSend() throws Exception {
+        ManagedChannel channel = grpcCleanup.register(
+                InProcessChannelBuilder.forName(serverName).directExecutor().build());
+        FactoryTracing aggregating = new FactoryTracingAggregating(channel, 1, TimeUnit.HOURS);
+        failingNextHistogram = true;
+
+        FactoryTracing.Trace root = aggregating.analysis("owner", "repo", "commit", "analysis")
+                .trace("root", "tracker", 0);
+        root.trace("child").end();
+        root.end();
+        // The root snapshot is lost with the stream, and the child snapshot is kept when the error is thrown
+        try {
+            aggregating.flush().get();
+            fail("Expected the stream failure to be thrown");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause().getCause().getMessage(), equalTo("UNAVAILABLE"));
+        }
+        root.trace("child").end();
+        aggregating.close();
+
+        assertThat(histograms.size(), equalTo(1));
+        assertThat(histograms.get(0).getPathList(), equalTo(Arrays.asList("root", "child")));
+        assertThat(histograms.get(0).getCount(), equalTo(2L));
+        assertThat(aggregating.metrics().getEventsDropped(), equalTo(0L));
+    }
+
+    @Test
+    public void aggregatingDropsDurationsOfRejectedAnalyses() throws Exception {
+        ManagedChannel channel = grpcCleanup.register(
+                InProcessChannelBuilder.forName(serverName).directExecutor().build());
+        FactoryTracing aggregating = new FactoryTracingAggregating(channel, 1, TimeUnit.HOURS);
+        FactoryTracing.Analysis rejected = aggregating.analysis("owner", "repo", "commit", "rejected");
+
+        try {
+            rejected.trace("root", "tracker", 0);
+            fail("Expected the rejected analysis to throw");
+        } catch (RuntimeException e) {
+            assertThat(e.getCause().getMessage(), equalTo("INVALID_ARGUMENT"));
+        }
+        rejected.trace("root", "tracker", 0).end();
+        aggregating.close();
+
+        assertThat(histograms.size(), equalTo(0));
+        assertThat(aggregating.metrics().getEventsDropped(), equalTo(1L));
+    }
 }
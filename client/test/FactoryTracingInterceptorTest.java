@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2022 Vaticle
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.vaticle.factory.tracing.client.test;
+
+import com.vaticle.factory.tracing.client.FactoryTracing;
+import com.vaticle.factory.tracing.client.FactoryTracingClientInterceptor;
+import com.vaticle.factory.tracing.client.FactoryTracingServerInterceptor;
+import com.vaticle.factory.tracing.client.FactoryTracingStandard;
+import com.vaticle.factory.tracing.client.FactoryTracingThreadStatic;
+import com.vaticle.factory.tracing.client.FactoryTracingThreadStatic.ThreadContext;
+import com.vaticle.factory.tracing.client.FactoryTracingThreadStatic.ThreadTrace;
+import com.vaticle.factory.tracing.protocol.TracingProto;
+import com.vaticle.factory.tracing.protocol.TracingServiceGrpc;
+import io.grpc.ClientInterceptors;
+import io.grpc.ManagedChannel;
+import io.grpc.ServerInterceptors;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import io.grpc.testing.GrpcCleanupRule;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.notNullValue;
+
+/**
+ * Sends a call through both interceptors in process. It has a test target of its own, since the global tracing client
+ * can only be set once per JVM.
+ */
+public class FactoryTracingInterceptorTest {
+
+    @Rule
+    public final GrpcCleanupRule grpcCleanup = new GrpcCleanupRule();
+
+    private final List<TracingProto.Trace.Req> traces = new CopyOnWriteArrayList<>();
+
+    private final TracingServiceGrpc.TracingServiceImplBase tracingService = new TracingServiceGrpc.TracingServiceImplBase() {
+        @Override
+        public void create(TracingProto.Analysis.Req request, StreamObserver<TracingProto.Analysis.Res> responseObserver) {
+            responseObserver.onNext(TracingProto.Analysis.Res.newBuilder().setAnalysisId(1).build());
+            responseObserver.onCompleted();
+        }
+
+        @Override
+        public StreamObserver<TracingProto.Trace.Req> stream(StreamObserver<TracingProto.Trace.Res> responseObserver) {
+            return new StreamObserver<TracingProto.Trace.Req>() {
+                @Override
+                public void onNext(TracingProto.Trace.Req req) {
+                    traces.add(req);
+                    responseObserver.onNext(TracingProto.Trace.Res.newBuilder().setAckedSequence(req.getSequence()).build());
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                }
+
+                @Override
+                public void onCompleted() {
+                    responseObserver.onCompleted();
+                }
+            };
+        }
+    };
+
+    // Any service will do as the application being traced; its handler opens a trace of its own
+    private final TracingServiceGrpc.TracingServiceImplBase applicationService = new TracingServiceGrpc.TracingServiceImplBase() {
+        @Override
+        public void create(TracingProto.Analysis.Req request, StreamObserver<TracingProto.Analysis.Res> responseObserver) {
+            try (ThreadTrace ignored = FactoryTracingThreadStatic.traceOnThread("handler")) {
+                responseObserver.onNext(TracingProto.Analysis.Res.getDefaultInstance());
+                responseObserver.onCompleted();
+            }
+        }
+    };
+
+    @Test
+    public void traceContinuesAcrossCall() throws Exception {
+        String tracingServer = InProcessServerBuilder.generateName();
+        grpcCleanup.register(InProcessServerBuilder.forName(tracingServer).directExecutor()
+                                     .addService(tracingService).build().start());
+        FactoryTracing client = new FactoryTracingStandard(grpcCleanup.register(
+                InProcessChannelBuilder.forName(tracingServer).directExecutor().build()));
+        FactoryTracingThreadStatic.setGlobalTracingClient(client);
+        FactoryTracingThreadStatic.openGlobalAnalysis("owner", "repo", "commit", "analysis");
+
+        // The application server runs handlers on its own threads, as it would in another process
+        String applicationServer = InProcessServerBuilder.generateName();
+        grpcCleanup.register(InProcessServerBuilder.forName(applicationServer)
+                                     .addService(ServerInterceptors.intercept(applicationService,
+                                                                              new FactoryTracingServerInterceptor()))
+                                     .build().start());
+        ManagedChannel applicationChannel = grpcCleanup.register(
+                InProcessChannelBuilder.forName(applicationServer).build());
+        TracingServiceGrpc.TracingServiceBlockingStub application = TracingServiceGrpc.newBlockingStub(
+                ClientInterceptors.intercept(applicationChannel, new FactoryTracingClientInterceptor()));
+
+        try (ThreadContext ignored = FactoryTracingThreadStatic.contextOnThread("tracker", 0);
+             ThreadTrace ignored2 = FactoryTracingThreadStatic.traceOnThread("caller")) {
+            application.create(TracingProto.Analysis.Req.getDefaultInstance());
+        }
+        // The continuation ends once the call completes on the server, which can be after the caller has returned
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (traces.size() < 6 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        client.close();
+
+        TracingProto.Trace.Req caller = started("caller");
+        TracingProto.Trace.Req continuation = started("protocol.TracingService/create");
+        TracingProto.Trace.Req handler = started("handler");
+        assertThat(caller, notNullValue());
+        assertThat(continuation, notNullValue());
+        assertThat(handler, notNullValue());
+        assertThat(continuation.getRootId(), equalTo(caller.getId()));
+        assertThat(continuation.getParentId(), equalTo(caller.getId()));
+        assertThat(handler.getRootId(), equalTo(caller.getId()));
+        assertThat(handler.getParentId(), equalTo(continuation.getId()));
+        assertThat(ended(continuation), equalTo(true));
+        assertThat(ended(handler), equalTo(true));
+        assertThat(ended(caller), equalTo(true));
+    }
+
+    private TracingProto.Trace.Req started(String name) {
+        return traces.stream().filter(req -> req.getName().equals(name)).findFirst().orElse(null);
+    }
+
+    private boolean ended(TracingProto.Trace.Req started) {
+        return traces.stream().anyMatch(req -> req.getId().equals(started.getId()) && req.getEnded() != 0);
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2022 Vaticle
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.vaticle.factory.tracing.client.test;
+
+import com.vaticle.factory.tracing.client.FactoryTracing;
+import com.vaticle.factory.tracing.client.FactoryTracingJfr;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class FactoryTracingJfrTest {
+
+    @Test
+    public void labelsMayContainAnyCharacter() throws Exception {
+        Path file = Files.createTempFile("factory-tracing", ".jfr");
+        try {
+            try (Recording recording = new Recording()) {
+                recording.enable(FactoryTracingJfr.TRACE_EVENT);
+                recording.start();
+                new FactoryTracingJfr().analysis("owner", "repo", "commit", "analysis")
+                        .trace("root", "tracker", 0)
+                        .labels("two\nlines", "12:not a length", "")
+                        .labels("last")
+                        .end();
+                recording.stop();
+                recording.dump(file);
+            }
+
+            List<RecordedEvent> traces = RecordingFile.readAllEvents(file).stream()
+                    .filter(event -> event.getEventType().getName().equals(FactoryTracingJfr.TRACE_EVENT))
+                    .collect(Collectors.toList());
+            assertThat(traces.size(), equalTo(1));
+            assertThat(FactoryTracingJfr.decodeLabels(traces.get(0).getString("labels")),
+                       equalTo(Arrays.asList("two\nlines", "12:not a length", "", "last")));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void noLabelsDecodeToEmpty() {
+        assertThat(FactoryTracingJfr.decodeLabels(null), equalTo(Collections.emptyList()));
+    }
+
+    @Test
+    public void dataSupplierIsNotCalledWithoutRecording() {
+        FactoryTracing.Trace trace = new FactoryTracingJfr().analysis("owner", "repo", "commit", "analysis")
+                .trace("root", "tracker", 0);
+        trace.data(() -> {
+            throw new AssertionError("The data was computed although no recording is running");
+        });
+        trace.end();
+    }
+
+    @Test
+    public void childrenRecordTheirRootAndItsAnalysis() throws Exception {
+        Path file = Files.createTempFile("factory-tracing", ".jfr");
+        try {
+            FactoryTracing.Trace root;
+            FactoryTracing.Trace child;
+            try (Recording recording = new Recording()) {
+                recording.enable(FactoryTracingJfr.TRACE_EVENT);
+                recording.start();
+                root = new FactoryTracingJfr().analysis("owner", "repo", "commit", "analysis")
+                        .trace("root", "tracker", 0);
+                child = root.trace("child").end();
+                root.end();
+                recording.stop();
+                recording.dump(file);
+            }
+
+            List<RecordedEvent> traces = RecordingFile.readAllEvents(file).stream()
+                    .filter(event -> event.getEventType().getName().equals(FactoryTracingJfr.TRACE_EVENT))
+                    .collect(Collectors.toList());
+            assertThat(traces.size(), equalTo(2));
+            RecordedEvent childEvent = traces.get(0);
+            RecordedEvent rootEvent = traces.get(1);
+            assertThat(rootEvent.getLong("idLeast"), equalTo(root.getIdLeastSignificantBits()));
+            assertThat(rootEvent.getLong("rootIdLeast"), equalTo(root.getIdLeastSignificantBits()));
+            assertThat(rootEvent.getLong("parentIdLeast"), equalTo(0L));
+            assertThat(childEvent.getLong("idLeast"), equalTo(child.getIdLeastSignificantBits()));
+            assertThat(childEvent.getLong("rootIdLeast"), equalTo(root.getIdLeastSignificantBits()));
+            assertThat(childEvent.getLong("parentIdLeast"), equalTo(root.getIdLeastSignificantBits()));
+            assertThat(childEvent.getLong("analysis"), equalTo(rootEvent.getLong("analysis")));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void idsAreKeptOnceRequestedWithoutRecording() {
+        FactoryTracing.Trace root = new FactoryTracingJfr().analysis("owner", "repo", "commit", "analysis")
+                .trace("root", "tracker", 0);
+        FactoryTracing.Trace child = root.trace("child");
+
+        assertThat(child.getRootId(), equalTo(root.getId()));
+        assertThat(root.getRootId(), equalTo(root.getId()));
+        assertThat(child.getId(), equalTo(child.getId()));
+        assertThat(child.getId().equals(root.getId()), equalTo(false));
+        assertThat(root.getId().version(), equalTo(4));
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2022 Vaticle
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.vaticle.factory.tracing.client.test;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.read.ListAppender;
+import com.vaticle.factory.tracing.client.FactoryTracing;
+import com.vaticle.factory.tracing.client.FactoryTracingJfr;
+import com.vaticle.factory.tracing.client.FactoryTracingSlf4j;
+import com.vaticle.factory.tracing.client.LabelSet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+
+public class FactoryTracingSlf4jTest {
+
+    private final Logger logger = (Logger) LoggerFactory.getLogger(FactoryTracingSlf4j.class);
+    private final ListAppender<ILoggingEvent> appender = new ListAppender<>();
+
+    @Before
+    public void setUp() {
+        logger.setLevel(Level.TRACE);
+        appender.start();
+        logger.addAppender(appender);
+    }
+
+    @After
+    public void tearDown() {
+        logger.detachAppender(appender);
+        logger.setLevel(null);
+    }
+
+    @Test
+    public void completionLogsOneLineWithNameDurationAndLabels() throws Exception {
+        FactoryTracing tracing = new FactoryTracingJfr().withCompletionLogging();
+        String[] labels = {"first", "second"};
+
+        long start = System.nanoTime();
+        FactoryTracing.Trace trace = tracing.analysis("owner", "repo", "commit", "analysis")
+                .trace("root", "tracker", 0)
+                .labels(labels);
+        // The array passed to the trace is the caller's to reuse
+        labels[0] = "changed";
+        trace.labels(LabelSet.of("third"));
+        Thread.sleep(5);
+        trace.end();
+        long elapsed = System.nanoTime() - start;
+
+        ILoggingEvent completed = appender.list.get(appender.list.size() - 1);
+        Object[] arguments = completed.getArgumentArray();
+        assertThat(completed.getMessage().startsWith("trace.complete:"), equalTo(true));
+        assertThat(arguments[0], equalTo("root"));
+        assertThat((Long) arguments[3], greaterThanOrEqualTo(5_000_000L));
+        assertThat((Long) arguments[3] <= elapsed, equalTo(true));
+        assertThat(arguments[4].toString(), equalTo("first, second, third"));
+        assertThat(completed.getFormattedMessage().contains("labels=[first, second, third]"), equalTo(true));
+    }
+}
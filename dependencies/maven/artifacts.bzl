@@ -31,26 +31,43 @@ artifacts = [
     "io.grpc:grpc-netty",
     "io.grpc:grpc-testing",
     "io.netty:netty-codec-http2",
+    "io.netty:netty-common",
     "io.netty:netty-handler",
     "io.netty:netty-tcnative-boringssl-static",
+    "io.netty:netty-transport",
+    "io.netty:netty-transport-native-epoll",
+    "io.netty:netty-transport-native-epoll:jar:linux-x86_64",
     "javax.annotation:javax.annotation-api",
     "junit:junit",
     "org.hamcrest:hamcrest",
     "org.mockito:mockito-core",
+    "org.openjdk.jmh:jmh-core",
+    "org.openjdk.jmh:jmh-generator-annprocess",
+    "org.ow2.asm:asm",
+    "org.ow2.asm:asm-commons",
+    "org.pantsbuild:jarjar",
     "org.slf4j:slf4j-api"
 ]
 
 # Override libraries conflicting with versions defined in @vaticle_dependencies
 artifacts_repo = {
-    "io.netty:netty-all": "4.1.38.Final",
-    "io.netty:netty-codec-http2": "4.1.38.Final",
-    "io.netty:netty-handler": "4.1.38.Final",
-    "io.netty:netty-handler-proxy": "4.1.38.Final",
-    "io.netty:netty-buffer": "4.1.38.Final",
-    "io.netty:netty-codec": "4.1.38.Final",
-    "io.netty:netty-codec-http": "4.1.38.Final",
-    "io.netty:netty-codec-socks": "4.1.38.Final",
-    "io.netty:netty-common": "4.1.38.Final",
-    "io.netty:netty-transport": "4.1.38.Final",
-    "io.netty:netty-resolver": "4.1.38.Final",
+    "io.netty:netty-all": "4.1.63.Final",
+    "io.netty:netty-codec-http2": "4.1.63.Final",
+    "io.netty:netty-handler": "4.1.63.Final",
+    "io.netty:netty-handler-proxy": "4.1.63.Final",
+    "io.netty:netty-buffer": "4.1.63.Final",
+    "io.netty:netty-codec": "4.1.63.Final",
+    "io.netty:netty-codec-http": "4.1.63.Final",
+    "io.netty:netty-codec-socks": "4.1.63.Final",
+    "io.netty:netty-common": "4.1.63.Final",
+    "io.netty:netty-transport": "4.1.63.Final",
+    "io.netty:netty-transport-native-epoll": "4.1.63.Final",
+    "io.netty:netty-transport-native-epoll:jar:linux-x86_64": "4.1.63.Final",
+    "io.netty:netty-transport-native-unix-common": "4.1.63.Final",
+    "io.netty:netty-resolver": "4.1.63.Final",
+    "org.openjdk.jmh:jmh-core": "1.34",
+    "org.openjdk.jmh:jmh-generator-annprocess": "1.34",
+    "org.ow2.asm:asm": "9.2",
+    "org.ow2.asm:asm-commons": "9.2",
+    "org.pantsbuild:jarjar": "1.7.2",
 }
@@ -59,10 +59,13 @@ public class ExampleTracingClient {
             for (int i = 0; i < width; i++) {
                 Trace inner = trace.trace("depth-" + depth + "-iter-" + i);
 
+                inner.event("started");
                 tracedFunction(depth - 1, width, inner);
 
                 inner.labels("label1", "label2");
                 inner.data("data");
+                inner.attribute("width", width);
+                inner.count("calls", 1);
                 inner.end();
             }
         }
@@ -21,27 +21,84 @@
 
 package com.vaticle.factory.tracing.example;
 
+import com.google.protobuf.ByteString;
 import com.vaticle.factory.tracing.protocol.TracingProto.Analysis;
+import com.vaticle.factory.tracing.protocol.TracingProto.Histogram;
 import com.vaticle.factory.tracing.protocol.TracingProto.Trace;
 import com.vaticle.factory.tracing.protocol.TracingServiceGrpc.TracingServiceImplBase;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
 import io.grpc.stub.StreamObserver;
 
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class ExampleTracingServer extends TracingServiceImplBase {
+    private static final int ACK_INTERVAL = 256;
+    private static final long ACK_DELAY_MILLIS = 100;
+
     private Server server;
+    private final Map<ByteString, Session> sessions = new ConcurrentHashMap<>();
+    // Each open stream with the task that acknowledges what it has received so far
+    private final Map<StreamObserver<Trace.Res>, Runnable> streams = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService acknowledger = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "example-tracing-acknowledger");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private OutputStream recording;
 
     public ExampleTracingServer(int port) {
         server = ServerBuilder.forPort(port).addService(this).build();
     }
 
+    /**
+     * Record every trace event received, once each, as length-delimited messages that can be compared with another
+     * recording by {@code //tool:compare}.
+     */
+    public void record(String path) throws IOException {
+        recording = new BufferedOutputStream(Files.newOutputStream(Paths.get(path)));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                synchronized (recording) {
+                    recording.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }));
+    }
+
     public void start() throws Exception {
+        // Clients wait for acknowledgements to complete a flush, so a quiet stream is acknowledged too
+        acknowledger.scheduleWithFixedDelay(() -> streams.values().forEach(Runnable::run),
+                                            ACK_DELAY_MILLIS, ACK_DELAY_MILLIS, TimeUnit.MILLISECONDS);
         server.start();
         server.awaitTermination();
     }
 
+    /**
+     * Send new limits to every connected client.
+     */
+    public void control(Trace.Control control) {
+        System.out.print("Trace Control: " + control);
+        Trace.Res res = Trace.Res.newBuilder().setControl(control).build();
+        streams.keySet().forEach(stream -> respond(stream, res));
+    }
+
     @Override
     public void create(Analysis.Req request, StreamObserver<Analysis.Res> responseObserver) {
         System.out.println("Create Request: " + request);
@@ -59,10 +116,86 @@ public class ExampleTracingServer extends TracingServiceImplBase {
     public StreamObserver<Trace.Req> stream(StreamObserver<Trace.Res> responseObserver) {
         System.out.println("Trace Stream Started");
 
-        return new StreamObserver<Trace.Req>() {
+        class TraceReceiver implements StreamObserver<Trace.Req> {
+            private Session session = new Session();
+            private long unacknowledged;
+
+            private synchronized void acknowledge() {
+                if (unacknowledged == 0) return;
+                respond(responseObserver, Trace.Res.newBuilder().setAckedSequence(session.received).build());
+                unacknowledged = 0;
+            }
+
+            private synchronized boolean receive(Trace.Req req) {
+                if (!req.getSession().isEmpty()) {
+                    session = sessions.computeIfAbsent(req.getSession(), s -> new Session());
+                }
+                boolean received = session.receive(req.getSequence());
+                if (++unacknowledged == ACK_INTERVAL) acknowledge();
+                return received;
+            }
+
             @Override
             public void onNext(Trace.Req req) {
+                boolean received = receive(req);
+                if (!received) {
+                    System.out.println("Trace Duplicate: " + req.getSequence());
+                    return;
+                }
                 System.out.print("Trace Request: " + req);
+                if (recording != null) record(req);
+                for (Trace.Req.Attribute attribute : req.getAttributesList()) {
+                    System.out.println("Trace Attribute: " + attribute.getKey() + " = " + attributeValue(attribute));
+                }
+                Map<ByteString, String> paths = session.paths;
+                if (req.hasRootStart()) {
+                    Trace.Req.StartRoot root = req.getRootStart();
+                    paths.put(req.getId(), root.getTracker() + " #" + root.getIteration() + " " + req.getName());
+                } else if (req.getStartCase() == Trace.Req.StartCase.PARENTID) {
+                    paths.put(req.getId(), paths.get(req.getParentId()) + "/" + req.getName());
+                }
+                for (Trace.Req.Event event : req.getEventsList()) {
+                    System.out.printf("Trace Event: %s %s at +%.3fms%n", paths.get(req.getId()), event.getName(),
+                                      event.getOffset() / 1_000_000.0);
+                }
+                for (Trace.Req.Counter counter : req.getCountersList()) {
+                    session.counters.merge(paths.get(req.getId()) + " " + counter.getName(), counter.getValue(), Long::sum);
+                }
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                streams.remove(responseObserver);
+                throwable.printStackTrace();
+            }
+
+            @Override
+            public void onCompleted() {
+                streams.remove(responseObserver);
+                acknowledge();
+                session.counters.forEach((counter, sum) -> System.out.println("Trace Counter: " + counter + " = " + sum));
+                System.out.println("Trace Stream Completed: " + session.received + " events, " + session.lost +
+                                           " lost, " + session.duplicates + " duplicates");
+                sessions.values().remove(session);
+                synchronized (responseObserver) {
+                    responseObserver.onCompleted();
+                }
+            }
+        }
+
+        TraceReceiver receiver = new TraceReceiver();
+        streams.put(responseObserver, receiver::acknowledge);
+        return receiver;
+    }
+
+    @Override
+    public StreamObserver<Histogram.Req> histogram(StreamObserver<Histogram.Res> responseObserver) {
+        System.out.println("Histogram Stream Started");
+
+        return new StreamObserver<Histogram.Req>() {
+            @Override
+            public void onNext(Histogram.Req req) {
+                System.out.print("Histogram Request: " + req);
             }
 
             @Override
@@ -72,16 +205,102 @@ public class ExampleTracingServer extends TracingServiceImplBase {
 
             @Override
             public void onCompleted() {
-                responseObserver.onNext(Trace.Res.newBuilder().build());
-                System.out.println("Trace Stream Completed");
+                responseObserver.onNext(Histogram.Res.newBuilder().build());
+                System.out.println("Histogram Stream Completed");
                 responseObserver.onCompleted();
             }
         };
     }
 
+    private void record(Trace.Req req) {
+        synchronized (recording) {
+            try {
+                req.writeDelimitedTo(recording);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static void respond(StreamObserver<Trace.Res> responseObserver, Trace.Res res) {
+        // Acknowledgements and control messages are sent from different threads
+        synchronized (responseObserver) {
+            responseObserver.onNext(res);
+        }
+    }
+
+    /**
+     * The state of a client session, which outlives its streams when the client reconnects.
+     */
+    private static class Session {
+        private final Map<ByteString, String> paths = new HashMap<>();
+        private final Map<String, Long> counters = new TreeMap<>();
+        private long received;
+        private long lost;
+        private long duplicates;
+
+        /**
+         * @return Whether the event with the given sequence is new, rather than resent after a reconnect.
+         */
+        private synchronized boolean receive(long sequence) {
+            if (sequence == 0) return true; // Sent by a client that does not number its events
+            if (sequence <= received) {
+                duplicates++;
+                return false;
+            }
+            if (sequence > received + 1) {
+                System.out.println("Trace Lost: " + (received + 1) + " to " + (sequence - 1));
+                lost += sequence - received - 1;
+            }
+            received = sequence;
+            return true;
+        }
+    }
+
+    private static Object attributeValue(Trace.Req.Attribute attribute) {
+        switch (attribute.getValueCase()) {
+            case INTVALUE:
+                return attribute.getIntValue();
+            case DOUBLEVALUE:
+                return attribute.getDoubleValue();
+            case BOOLVALUE:
+                return attribute.getBoolValue();
+            case BYTESVALUE:
+                return attribute.getBytesValue().size() + " bytes";
+            case STRINGVALUE:
+                return attribute.getStringValue();
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Read limits for the connected clients from standard input, one per line, as
+     * {@code <dropProbability> <maxEventsPerSecond> [paused]}.
+     */
+    private static void readControls(ExampleTracingServer server) {
+        Scanner scanner = new Scanner(System.in);
+        while (scanner.hasNextLine()) {
+            String[] words = scanner.nextLine().trim().split("\\s+");
+            try {
+                server.control(Trace.Control.newBuilder()
+                                       .setDropProbability(Double.parseDouble(words[0]))
+                                       .setMaxEventsPerSecond(words.length > 1 ? Integer.parseInt(words[1]) : 0)
+                                       .setPaused(words.length > 2 && words[2].equals("paused"))
+                                       .build());
+            } catch (NumberFormatException e) {
+                System.out.println("Usage: <dropProbability> <maxEventsPerSecond> [paused]");
+            }
+        }
+    }
+
     public static void main(String[] args) {
         try {
             ExampleTracingServer server = new ExampleTracingServer(Integer.parseInt(args[0]));
+            if (args.length == 3 && args[1].equals("--record")) server.record(args[2]);
+            Thread console = new Thread(() -> readControls(server), "example-tracing-console");
+            console.setDaemon(true);
+            console.start();
             server.start();
         } catch (Exception ex) {
             ex.printStackTrace();
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2022 Vaticle
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.vaticle.factory.tracing.protocol.test;
+
+import com.google.protobuf.ByteString;
+import com.vaticle.factory.tracing.protocol.TracingProto.Trace;
+import com.vaticle.factory.tracing.protocol.util.TraceTree;
+import com.vaticle.factory.tracing.protocol.util.TraceTreeAssembler;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+
+public class TraceTreeAssemblerTest {
+    private static final ByteString ROOT = ByteString.copyFromUtf8("root");
+    private static final ByteString A = ByteString.copyFromUtf8("a");
+    private static final ByteString B = ByteString.copyFromUtf8("b");
+    private static final ByteString C = ByteString.copyFromUtf8("c");
+    private static final ByteString D = ByteString.copyFromUtf8("d");
+
+    private final List<TraceTree> trees = new ArrayList<>();
+
+    @Test
+    public void assemblesEventsInAnyOrder() {
+        TraceTreeAssembler assembler = new TraceTreeAssembler(16, trees::add);
+        assembler.accept(end(A, 1030));
+        assembler.accept(childStart(A, ROOT, "a", 1010));
+        assembler.accept(Trace.Req.newBuilder().setId(A).setRootId(ROOT).setData("data").addLabels("label").build());
+        assembler.accept(childStart(B, ROOT, "b", 1050));
+        assembler.accept(end(ROOT, 1100));
+        assertThat(trees.size(), equalTo(0));
+
+        // The root has now started and ended, but the tree waits for b, which outlives it
+        assembler.accept(rootStart(ROOT, "root", 1000));
+        assertThat(assembler.openTrees(), equalTo(1));
+        assembler.accept(end(B, 1120));
+        assertThat(trees.size(), equalTo(1));
+        assertThat(assembler.openTrees(), equalTo(0));
+
+        TraceTree tree = trees.get(0);
+        assertThat(tree.isComplete(), equalTo(true));
+        assertThat(tree.root().tracker(), equalTo("tracker"));
+        assertThat(tree.root().children().stream().map(TraceTree.Node::name).collect(Collectors.toList()),
+                   contains("a", "b"));
+        TraceTree.Node a = tree.root().children().get(0);
+        assertThat(a.data(), equalTo("data"));
+        assertThat(a.labels(), contains("label"));
+    }
+
+    @Test
+    public void computesSelfTimeAndCriticalPath() {
+        TraceTreeAssembler assembler = new TraceTreeAssembler(16, trees::add);
+        // root 0-100: a 10-40 and b 30-60 overlap, and c 50-90 outlives its parent b
+        assembler.accept(rootStart(ROOT, "root", 1000));
+        assembler.accept(childStart(A, ROOT, "a", 1010));
+        assembler.accept(childStart(B, ROOT, "b", 1030));
+        assembler.accept(childStart(C, B, "c", 1050));
+        assembler.accept(end(A, 1040));
+        assembler.accept(end(C, 1090));
+        assembler.accept(end(B, 1060));
+        assembler.accept(end(ROOT, 1100));
+
+        TraceTree tree = trees.get(0);
+        TraceTree.Node root = tree.root();
+        assertThat(root.duration(), equalTo(100L));
+        assertThat(root.selfTime(), equalTo(50L));
+        assertThat(root.childTime(), equalTo(50L));
+
+        // Backwards from the end: root 60-100, b 30-60 waiting on c 50-60, a 10-30 until b started, then root 0-10
+        assertThat(tree.criticalPath().stream().map(TraceTree.Node::name).collect(Collectors.toList()),
+                   contains("root", "a", "b", "c"));
+        assertThat(root.criticalTime(), equalTo(50L));
+        assertThat(root.children().get(0).criticalTime(), equalTo(20L));
+        assertThat(root.children().get(1).criticalTime(), equalTo(20L));
+        assertThat(root.children().get(1).children().get(0).criticalTime(), equalTo(10L));
+    }
+
+    @Test
+    public void findsTracesWhoseParentNeverStarted() {
+        TraceTreeAssembler assembler = new TraceTreeAssembler(16, trees::add);
+        // a's parent c never starts, b is a's child, and the root's own start is lost
+        assembler.accept(childStart(A, C, "a", 1010));
+        assembler.accept(childStart(B, A, "b", 1020));
+        assembler.accept(childStart(D, ROOT, "root child", 1030));
+        assembler.accept(end(ROOT, 1100));
+        assembler.flush();
+
+        TraceTree tree = trees.get(0);
+        assertThat(tree.orphans().stream().map(TraceTree.Node::name).collect(Collectors.toList()), contains("a"));
+        assertThat(tree.root().children().stream().map(TraceTree.Node::name).collect(Collectors.toList()),
+                   contains("root child"));
+    }
+
+    @Test
+    public void evictsOldestTreeWhenFull() {
+        TraceTreeAssembler assembler = new TraceTreeAssembler(1, trees::add);
+        assembler.accept(rootStart(ROOT, "first", 1000));
+        assembler.accept(rootStart(A, "second", 1000));
+        assertThat(trees.size(), equalTo(1));
+        assertThat(trees.get(0).isComplete(), equalTo(false));
+        assertThat(trees.get(0).root().name(), equalTo("first"));
+
+        assembler.flush();
+        assertThat(trees.size(), equalTo(2));
+        assertThat(assembler.openTrees(), equalTo(0));
+    }
+
+    private static Trace.Req rootStart(ByteString id, String name, long started) {
+        return Trace.Req.newBuilder().setId(id).setRootId(id).setName(name).setStarted(started)
+                .setRootStart(Trace.Req.StartRoot.newBuilder().setAnalysisId(1).setTracker("tracker")).build();
+    }
+
+    private static Trace.Req childStart(ByteString id, ByteString parentId, String name, long started) {
+        return Trace.Req.newBuilder().setId(id).setRootId(ROOT).setParentId(parentId).setName(name)
+                .setStarted(started).build();
+    }
+
+    private static Trace.Req end(ByteString id, long ended) {
+        return Trace.Req.newBuilder().setId(id).setRootId(ROOT).setEnded(ended).build();
+    }
+}
@@ -22,6 +22,7 @@
 package com.vaticle.factory.tracing.protocol.util;
 
 import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
 
 import java.nio.ByteBuffer;
 import java.util.UUID;
@@ -75,4 +76,21 @@ public class ProtobufUUIDUtil {
         buffer.rewind();
         return ByteString.copyFrom(buffer);
     }
+
+    /**
+     * Converts the bits of a UUID into a protobuf {@link ByteString}, without creating a {@link UUID}. The bytes are
+     * written once and wrapped rather than copied, so this allocates only the array and the {@link ByteString}.
+     *
+     * @param mostSignificantBits The most significant bits of the UUID
+     * @param leastSignificantBits The least significant bits of the UUID
+     * @return The equivalent protobuf UUID (MSB, LSB)
+     */
+    public static ByteString toBuf(long mostSignificantBits, long leastSignificantBits) {
+        byte[] bytes = new byte[16];
+        for (int i = 0; i < 8; i++) {
+            bytes[i] = (byte) (mostSignificantBits >>> (56 - 8 * i));
+            bytes[8 + i] = (byte) (leastSignificantBits >>> (56 - 8 * i));
+        }
+        return UnsafeByteOperations.unsafeWrap(bytes);
+    }
 }
@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2022 Vaticle
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.vaticle.factory.tracing.protocol.util;
+
+import com.google.protobuf.ByteString;
+import com.vaticle.factory.tracing.protocol.TracingProto.Trace;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A root trace and all of its descendants, as assembled by {@link TraceTreeAssembler}. Times are in milliseconds, as
+ * they are sent by the client.
+ */
+public class TraceTree {
+    private final Node root;
+    private final Map<ByteString, Node> nodes;
+    private final boolean complete;
+
+    TraceTree(Node root, Map<ByteString, Node> nodes, boolean complete) {
+        this.root = root;
+        this.nodes = nodes;
+        this.complete = complete;
+        for (Node node : nodes.values()) {
+            if (node == root || !nodes.containsKey(node.parentId)) node.computeTimes();
+        }
+        if (root.isStarted() && root.isEnded()) root.computeCriticalPath(root.started, root.ended);
+    }
+
+    /**
+     * @return The root trace, which has no start if its start was never received.
+     */
+    public Node root() {
+        return root;
+    }
+
+    /**
+     * @return Every trace of the tree, including those whose parent was never received and so are not descendants of
+     * the root.
+     */
+    public Collection<Node> nodes() {
+        return Collections.unmodifiableCollection(nodes.values());
+    }
+
+    /**
+     * A trace whose parent's start was never received hangs from an empty placeholder for the parent, which has no
+     * name and no place in the tree.
+     *
+     * @return The started traces other than the root whose parent never started, each heading its own subtree.
+     */
+    public List<Node> orphans() {
+        List<Node> orphans = new ArrayList<>();
+        for (Node node : nodes.values()) {
+            if (node == root || !node.isStarted()) continue;
+            Node parent = nodes.get(node.parentId);
+            if (parent == null || parent != root && !parent.isStarted()) orphans.add(node);
+        }
+        return orphans;
+    }
+
+    /**
+     * @return False if the tree was emitted before every trace in it had ended, because it was evicted or flushed.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * The critical path is the chain of traces that determined when the root ended: starting from the end of the root,
+     * it follows the child that ended last, then the child that ended last before that child started, and so on,
+     * recursively. Shortening any other trace would not have ended the root sooner.
+     *
+     * @return The traces on the critical path in depth-first order, each with its {@link Node#criticalTime()}.
+     */
+    public List<Node> criticalPath() {
+        List<Node> path = new ArrayList<>();
+        root.collectCriticalPath(path);
+        return path;
+    }
+
+    /**
+     * A single trace within a tree.
+     */
+    public static class Node {
+        private final ByteString id;
+        private ByteString parentId = ByteString.EMPTY;
+        private String name = "";
+        private String tracker = "";
+        private long analysisId;
+        private int iteration;
+        private long started;
+        private long ended;
+        private String data = "";
+        private final List<String> labels = new ArrayList<>();
+        private final List<Node> children = new ArrayList<>();
+        private long selfTime;
+        private long criticalTime;
+        private boolean onCriticalPath;
+
+        Node(ByteString id) {
+            this.id = id;
+        }
+
+        /**
+         * Merge a start, end, data or labels message for this trace.
+         *
+         * @return Whether the message ended the trace.
+         */
+        boolean merge(Trace.Req req) {
+            switch (req.getStartCase()) {
+                case ROOTSTART:
+                    Trace.Req.StartRoot rootStart = req.getRootStart();
+                    analysisId = rootStart.getAnalysisId();
+                    tracker = rootStart.getTracker();
+                    iteration = rootStart.getIteration();
+                    break;
+                case PARENTID:
+                    parentId = req.getParentId();
+                    break;
+                default:
+                    break;
+            }
+            if (!req.getName().isEmpty()) name = req.getName();
+            if (req.getStarted() != 0) started = req.getStarted();
+            if (!req.getData().isEmpty()) data = req.getData();
+            labels.addAll(req.getLabelsList());
+            if (req.getEnded() != 0 && ended == 0) {
+                ended = req.getEnded();
+                return true;
+            }
+            return false;
+        }
+
+        void addChild(Node child) {
+            children.add(child);
+        }
+
+        public ByteString id() {
+            return id;
+        }
+
+        /**
+         * @return The ID of the parent, or an empty string for a root trace.
+         */
+        public ByteString parentId() {
+            return parentId;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        /**
+         * @return The tracker of a root trace, or an empty string for any other trace.
+         */
+        public String tracker() {
+            return tracker;
+        }
+
+        public long analysisId() {
+            return analysisId;
+        }
+
+        public int iteration() {
+            return iteration;
+        }
+
+        public long started() {
+            return started;
+        }
+
+        public long ended() {
+            return ended;
+        }
+
+        public boolean isStarted() {
+            return started != 0;
+        }
+
+        public boolean isEnded() {
+            return ended != 0;
+        }
+
+        public String data() {
+            return data;
+        }
+
+        public List<String> labels() {
+            return Collections.unmodifiableList(labels);
+        }
+
+        public List<Node> children() {
+            return Collections.unmodifiableList(children);
+        }
+
+        /**
+         * @return The time from start to end, or 0 if either was not received.
+         */
+        public long duration() {
+            return isStarted() && isEnded() ? Math.max(ended - started, 0) : 0;
+        }
+
+        /**
+         * @return The part of the duration during which no child was open. Concurrent children are only counted once.
+         */
+        public long selfTime() {
+            return selfTime;
+        }
+
+        /**
+         * @return The part of the duration during which at least one child was open.
+         */
+        public long childTime() {
+            return duration() - selfTime;
+        }
+
+        /**
+         * @return The part of the duration that this trace itself, rather than its children, contributed to the
+         * critical path of the tree, or 0 if it is not on the critical path.
+         */
+        public long criticalTime() {
+            return criticalTime;
+        }
+
+        private void computeTimes() {
+            List<Node> timed = new ArrayList<>();
+            for (Node child : children) {
+                child.computeTimes();
+                if (child.duration() > 0) timed.add(child);
+            }
+            long duration = duration();
+            if (duration == 0) return;
+            timed.sort(Comparator.comparingLong(Node::started));
+            long covered = 0;
+            long cursor = started;
+            for (Node child : timed) {
+                long from = Math.max(child.started, cursor);
+                long to = Math.min(child.ended, ended);
+                if (to > from) {
+                    covered += to - from;
+                    cursor = to;
+                }
+            }
+            selfTime = duration - covered;
+        }
+
+        /**
+         * Attribute the window from {@code from} to {@code to} of this trace to itself and the children on its
+         * critical path, working backwards from the end of the window.
+         */
+        private void computeCriticalPath(long from, long to) {
+            onCriticalPath = true;
+            List<Node> timed = new ArrayList<>();
+            for (Node child : children) {
+                if (child.duration() > 0) timed.add(child);
+            }
+            timed.sort(Comparator.comparingLong(Node::ended).reversed());
+            long cursor = to;
+            for (Node child : timed) {
+                if (child.started >= cursor) continue;
+                long childTo = Math.min(child.ended, cursor);
+                long childFrom = Math.max(child.started, from);
+                if (childTo <= childFrom) continue;
+                criticalTime += cursor - childTo;
+                child.computeCriticalPath(childFrom, childTo);
+                cursor = childFrom;
+            }
+            criticalTime += cursor - from;
+        }
+
+        private void collectCriticalPath(List<Node> path) {
+            if (!onCriticalPath) return;
+            path.add(this);
+            for (Node child : children) child.collectCriticalPath(path);
+        }
+
+        @Override
+        public String toString() {
+            return name + " (" + duration() + "ms)";
+        }
+    }
+}
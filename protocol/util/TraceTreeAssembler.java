@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2022 Vaticle
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.vaticle.factory.tracing.protocol.util;
+
+import com.google.protobuf.ByteString;
+import com.vaticle.factory.tracing.protocol.TracingProto.Trace;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Assembles {@link TraceTree}s from a stream of {@link Trace.Req} events, which may arrive in any order and split
+ * across separate start, end, data and labels messages.
+ *
+ * Events are grouped by root ID, so a child that arrives before its parent is kept until the parent arrives. A tree is
+ * emitted as soon as its root and every trace it has heard of have ended. Memory is bounded by the number of trees
+ * that can be open at once: when another tree is opened, the tree that was opened first is evicted and emitted
+ * incomplete. Events that arrive for a tree after it was emitted start a new tree, which will only ever be emitted
+ * incomplete.
+ *
+ * An assembler is not thread-safe; events from concurrent streams must be serialised before they are accepted.
+ */
+public class TraceTreeAssembler {
+    private final int maxOpenTrees;
+    private final Consumer<TraceTree> consumer;
+    private final LinkedHashMap<ByteString, PartialTree> openTrees = new LinkedHashMap<>();
+
+    /**
+     * @param maxOpenTrees The number of trees that can be assembled at once.
+     * @param consumer Receives each tree once, when it completes, is evicted or is flushed.
+     */
+    public TraceTreeAssembler(int maxOpenTrees, Consumer<TraceTree> consumer) {
+        if (maxOpenTrees < 1) throw new IllegalArgumentException("Cannot assemble fewer than 1 tree at once");
+        this.maxOpenTrees = maxOpenTrees;
+        this.consumer = requireNonNull(consumer, "Cannot use null consumer");
+    }
+
+    public void accept(Trace.Req req) {
+        ByteString rootId = req.getRootId().isEmpty() ? req.getId() : req.getRootId();
+        PartialTree tree = openTrees.get(rootId);
+        if (tree == null) {
+            if (openTrees.size() == maxOpenTrees) evictOldest();
+            tree = new PartialTree(rootId);
+            openTrees.put(rootId, tree);
+        }
+        if (tree.merge(req)) {
+            openTrees.remove(rootId);
+            consumer.accept(tree.build(true));
+        }
+    }
+
+    /**
+     * Emit every tree that is still open as incomplete, such as when the stream has ended.
+     */
+    public void flush() {
+        Iterator<PartialTree> trees = openTrees.values().iterator();
+        while (trees.hasNext()) {
+            PartialTree tree = trees.next();
+            trees.remove();
+            consumer.accept(tree.build(false));
+        }
+    }
+
+    /**
+     * @return The number of trees still being assembled.
+     */
+    public int openTrees() {
+        return openTrees.size();
+    }
+
+    private void evictOldest() {
+        Iterator<PartialTree> trees = openTrees.values().iterator();
+        PartialTree oldest = trees.next();
+        trees.remove();
+        consumer.accept(oldest.build(false));
+    }
+
+    private static class PartialTree {
+        private final ByteString rootId;
+        private final Map<ByteString, TraceTree.Node> nodes = new LinkedHashMap<>();
+        private int unended;
+
+        private PartialTree(ByteString rootId) {
+            this.rootId = rootId;
+        }
+
+        /**
+         * @return Whether the tree is now complete.
+         */
+        private boolean merge(Trace.Req req) {
+            TraceTree.Node node = node(req.getId());
+            if (node.merge(req)) unended--;
+            // The parent is counted as open from the moment a child refers to it, so the tree waits for it to end
+            if (req.getStartCase() == Trace.Req.StartCase.PARENTID) node(req.getParentId());
+            TraceTree.Node root = nodes.get(rootId);
+            return unended == 0 && root != null && root.isEnded();
+        }
+
+        private TraceTree.Node node(ByteString id) {
+            TraceTree.Node node = nodes.get(id);
+            if (node == null) {
+                node = new TraceTree.Node(id);
+                nodes.put(id, node);
+                unended++;
+            }
+            return node;
+        }
+
+        private TraceTree build(boolean complete) {
+            TraceTree.Node root = nodes.get(rootId);
+            if (root == null) root = node(rootId);
+            for (TraceTree.Node node : nodes.values()) {
+                TraceTree.Node parent = node.parentId().isEmpty() ? null : nodes.get(node.parentId());
+                if (parent != null && node != root) parent.addChild(node);
+            }
+            return new TraceTree(root, nodes, complete);
+        }
+    }
+}
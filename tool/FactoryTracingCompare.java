@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2022 Vaticle
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.vaticle.factory.tracing.tool;
+
+import com.vaticle.factory.tracing.protocol.TracingProto.Trace;
+import com.vaticle.factory.tracing.protocol.util.TraceTree;
+import com.vaticle.factory.tracing.protocol.util.TraceTreeAssembler;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Compares the trace latencies of two recordings, such as a baseline and a candidate build running the same benchmark,
+ * and reports the trace paths that got significantly slower or faster.
+ *
+ * A recording is a file of length-delimited {@link Trace.Req} messages, as written by the example server with
+ * {@code --record}. Traces are matched across recordings by their tracker and the names of the traces from the root
+ * down, and the durations of every occurrence of a path, across all iterations, make up its latency distribution.
+ * The distributions are compared with a Mann-Whitney U test, and the paths that differ significantly are ranked by
+ * effect size, so that a small but consistent slowdown ranks above a large but noisy one.
+ *
+ * Usage: {@code <baseline> <candidate> [--alpha <p>] [--min-effect <delta>] [--fail-on-regression]}. With
+ * {@code --fail-on-regression} the exit status is 1 if any path regressed, so that the comparison can gate CI.
+ */
+public class FactoryTracingCompare {
+    private static final double DEFAULT_ALPHA = 0.01;
+    private static final double DEFAULT_MIN_EFFECT = 0.2;
+    private static final int MAX_OPEN_TREES = 4096;
+
+    private final double alpha;
+    private final double minEffect;
+
+    public FactoryTracingCompare(double alpha, double minEffect) {
+        this.alpha = alpha;
+        this.minEffect = minEffect;
+    }
+
+    /**
+     * Read the durations in milliseconds of every ended trace in a recording, grouped by trace path.
+     */
+    public static Map<String, long[]> read(Path recording) throws IOException {
+        Map<String, List<Long>> durations = new TreeMap<>();
+        TraceTreeAssembler assembler = new TraceTreeAssembler(
+                MAX_OPEN_TREES, tree -> addDurations(tree.root(), tree.root().tracker() + " ", durations));
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(recording))) {
+            Trace.Req req;
+            while ((req = Trace.Req.parseDelimitedFrom(in)) != null) {
+                assembler.accept(req);
+            }
+        }
+        assembler.flush();
+        Map<String, long[]> result = new TreeMap<>();
+        durations.forEach((path, list) -> result.put(path, list.stream().mapToLong(Long::longValue).toArray()));
+        return result;
+    }
+
+    private static void addDurations(TraceTree.Node node, String parentPath, Map<String, List<Long>> durations) {
+        String path = parentPath + node.name();
+        if (node.isStarted() && node.isEnded()) {
+            durations.computeIfAbsent(path, p -> new ArrayList<>()).add(node.duration());
+        }
+        for (TraceTree.Node child : node.children()) addDurations(child, path + "/", durations);
+    }
+
+    /**
+     * Compare every path recorded in both the baseline and the candidate.
+     *
+     * @return The comparisons, with the largest effects first.
+     */
+    public List<Comparison> compare(Map<String, long[]> baseline, Map<String, long[]> candidate) {
+        List<Comparison> comparisons = new ArrayList<>();
+        baseline.forEach((path, baselineDurations) -> {
+            long[] candidateDurations = candidate.get(path);
+            if (candidateDurations == null) return;
+            MannWhitney test = MannWhitney.test(baselineDurations, candidateDurations);
+            comparisons.add(new Comparison(path, baselineDurations, candidateDurations, test, classify(test)));
+        });
+        comparisons.sort(Comparator.comparingDouble((Comparison c) -> Math.abs(c.test.cliffsDelta())).reversed());
+        return comparisons;
+    }
+
+    private Change classify(MannWhitney test) {
+        if (test.pValue() >= alpha || Math.abs(test.cliffsDelta()) < minEffect) return Change.UNCHANGED;
+        return test.cliffsDelta() > 0 ? Change.REGRESSED : Change.IMPROVED;
+    }
+
+    public enum Change {
+        REGRESSED,
+        IMPROVED,
+        UNCHANGED
+    }
+
+    /**
+     * The comparison of the latency distributions of a single trace path.
+     */
+    public static class Comparison {
+        private final String path;
+        private final int baselineCount;
+        private final int candidateCount;
+        private final long baselineMedian;
+        private final long candidateMedian;
+        private final MannWhitney test;
+        private final Change change;
+
+        private Comparison(String path, long[] baseline, long[] candidate, MannWhitney test, Change change) {
+            this.path = path;
+            this.baselineCount = baseline.length;
+            this.candidateCount = candidate.length;
+            this.baselineMedian = median(baseline);
+            this.candidateMedian = median(candidate);
+            this.test = test;
+            this.change = change;
+        }
+
+        public String path() {
+            return path;
+        }
+
+        public Change change() {
+            return change;
+        }
+
+        public double pValue() {
+            return test.pValue();
+        }
+
+        public double effectSize() {
+            return test.cliffsDelta();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-9s %-60s %6d %6d %8dms %8dms %+7.1f%% p=%.2g delta=%+.2f", change, path,
+                                 baselineCount, candidateCount, baselineMedian, candidateMedian,
+                                 baselineMedian == 0 ? 0 : 100.0 * (candidateMedian - baselineMedian) / baselineMedian,
+                                 test.pValue(), test.cliffsDelta());
+        }
+
+        private static long median(long[] values) {
+            long[] sorted = values.clone();
+            Arrays.sort(sorted);
+            return sorted[sorted.length / 2];
+        }
+    }
+
+    public static void main(String[] args) {
+        List<String> files = new ArrayList<>();
+        double alpha = DEFAULT_ALPHA;
+        double minEffect = DEFAULT_MIN_EFFECT;
+        boolean failOnRegression = false;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--alpha":
+                        alpha = Double.parseDouble(args[++i]);
+                        break;
+                    case "--min-effect":
+                        minEffect = Double.parseDouble(args[++i]);
+                        break;
+                    case "--fail-on-regression":
+                        failOnRegression = true;
+                        break;
+                    default:
+                        files.add(args[i]);
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            files.clear();
+        }
+        if (files.size() != 2) {
+            System.err.println("Usage: <baseline> <candidate> [--alpha <p>] [--min-effect <delta>] [--fail-on-regression]");
+            System.exit(2);
+        }
+
+        try {
+            Map<String, long[]> baseline = read(Paths.get(files.get(0)));
+            Map<String, long[]> candidate = read(Paths.get(files.get(1)));
+            List<Comparison> comparisons = new FactoryTracingCompare(alpha, minEffect).compare(baseline, candidate);
+            boolean regressed = false;
+            for (Comparison comparison : comparisons) {
+                System.out.println(comparison);
+                regressed |= comparison.change() == Change.REGRESSED;
+            }
+            TreeSet<String> unmatched = new TreeSet<>(baseline.keySet());
+            unmatched.addAll(candidate.keySet());
+            unmatched.removeIf(path -> baseline.containsKey(path) && candidate.containsKey(path));
+            for (String path : unmatched) {
+                System.out.println((baseline.containsKey(path) ? "REMOVED   " : "ADDED     ") + path);
+            }
+            if (failOnRegression && regressed) System.exit(1);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(2);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2022 Vaticle
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.vaticle.factory.tracing.tool;
+
+import com.vaticle.factory.tracing.protocol.TracingProto.Trace;
+import com.vaticle.factory.tracing.protocol.util.TraceTree;
+import com.vaticle.factory.tracing.protocol.util.TraceTreeAssembler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Converts a recording of trace events into the collapsed-stack format read by flame graph tools. Each line is a stack,
+ * a space, and the weight of the stack. The stack is the tracker followed by the trace names from the root down, joined
+ * by semicolons. The weight is the self time in milliseconds of the traces at that stack, summed over all iterations.
+ * A trace whose parent was never received is placed directly under the tracker, with the names of its own subtree.
+ *
+ * The recording is streamed through a {@link TraceTreeAssembler}, and self times are summed per stack. When more than
+ * the maximum number of distinct stacks have been summed, the sums are written out and summing starts afresh, so a
+ * stack can appear on several lines. Flame graph tools add these lines together, and memory stays bounded however
+ * large the recording is.
+ *
+ * Usage: {@code <recording> [<output>] [--max-stacks <count>]}, writing to standard output if no output is given.
+ */
+public class FactoryTracingFlameGraph {
+    private static final int DEFAULT_MAX_STACKS = 65536;
+    private static final int MAX_OPEN_TREES = 4096;
+
+    private final Writer out;
+    private final int maxStacks;
+    private final Map<String, Long> selfTimes = new HashMap<>();
+
+    public FactoryTracingFlameGraph(Writer out, int maxStacks) {
+        this.out = out;
+        this.maxStacks = maxStacks;
+    }
+
+    /**
+     * Convert every trace in the recording, then write out the remaining sums.
+     */
+    public void convert(InputStream recording) throws IOException {
+        TraceTreeAssembler assembler = new TraceTreeAssembler(MAX_OPEN_TREES, this::add);
+        try {
+            Trace.Req req;
+            while ((req = Trace.Req.parseDelimitedFrom(recording)) != null) {
+                assembler.accept(req);
+            }
+            assembler.flush();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        flush();
+        out.flush();
+    }
+
+    private void add(TraceTree tree) {
+        String tracker = escape(tree.root().tracker());
+        add(tree.root(), tracker);
+        // Traces whose parent never arrived cannot be placed below the root, so start their own stacks
+        for (TraceTree.Node orphan : tree.orphans()) add(orphan, tracker);
+    }
+
+    private void add(TraceTree.Node node, String parentStack) {
+        String stack = parentStack + ";" + escape(node.name());
+        if (node.selfTime() > 0) {
+            if (!selfTimes.containsKey(stack) && selfTimes.size() == maxStacks) {
+                try {
+                    flush();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            selfTimes.merge(stack, node.selfTime(), Long::sum);
+        }
+        for (TraceTree.Node child : node.children()) add(child, stack);
+    }
+
+    private void flush() throws IOException {
+        for (Map.Entry<String, Long> entry : selfTimes.entrySet()) {
+            out.write(entry.getKey());
+            out.write(' ');
+            out.write(Long.toString(entry.getValue()));
+            out.write('\n');
+        }
+        selfTimes.clear();
+    }
+
+    /**
+     * Replace the characters that separate frames, counts and lines in the collapsed-stack format.
+     */
+    private static String escape(String name) {
+        return name.replace(';', ':').replace('\n', ' ').replace('\r', ' ');
+    }
+
+    public static void main(String[] args) {
+        String recording = null;
+        String output = null;
+        int maxStacks = DEFAULT_MAX_STACKS;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("--max-stacks")) maxStacks = Integer.parseInt(args[++i]);
+                else if (recording == null) recording = args[i];
+                else output = args[i];
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            recording = null;
+        }
+        if (recording == null || maxStacks < 1) {
+            System.err.println("Usage: <recording> [<output>] [--max-stacks <count>]");
+            System.exit(2);
+        }
+
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(Paths.get(recording)));
+             Writer out = new BufferedWriter(output == null
+                                                     ? new OutputStreamWriter(System.out, StandardCharsets.UTF_8)
+                                                     : Files.newBufferedWriter(Paths.get(output)))) {
+            new FactoryTracingFlameGraph(out, maxStacks).convert(in);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(2);
+        }
+    }
+}
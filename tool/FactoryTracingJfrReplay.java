@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2022 Vaticle
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.vaticle.factory.tracing.tool;
+
+import com.vaticle.factory.tracing.client.FactoryTracing;
+import com.vaticle.factory.tracing.client.FactoryTracingBuilder;
+import com.vaticle.factory.tracing.client.FactoryTracingJfr;
+import com.vaticle.factory.tracing.protocol.TracingProto.Analysis;
+import com.vaticle.factory.tracing.protocol.TracingProto.Trace;
+import com.vaticle.factory.tracing.protocol.TracingServiceGrpc;
+import com.vaticle.factory.tracing.protocol.TracingServiceGrpc.TracingServiceBlockingStub;
+import io.grpc.ManagedChannel;
+import io.grpc.stub.StreamObserver;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static com.vaticle.factory.tracing.client.FactoryTracingJfr.ANALYSIS_EVENT;
+import static com.vaticle.factory.tracing.client.FactoryTracingJfr.TRACE_EVENT;
+import static com.vaticle.factory.tracing.protocol.util.ProtobufUUIDUtil.toBuf;
+
+/**
+ * Sends the traces of a JDK Flight Recorder recording made with {@link FactoryTracingJfr} to a Factory server, as if
+ * they had been traced with a connected client. Every analysis in the recording is created again on the server, and
+ * trace IDs and timestamps are kept as recorded. A trace with no parent is sent as a root of the analysis it recorded.
+ * Child traces also record the analysis of their root, to filter the recording by, but are sent under their root ID.
+ *
+ * The recording is read one event at a time, in two passes: the analyses first, and then the traces, which are
+ * converted to their start and end messages as they are read. Only those messages are held, to be sorted into the
+ * order they happened, and not the rest of the recording.
+ *
+ * Usage: {@code <recording.jfr> <uri> [<username> <token>]}, connecting without TLS when no credentials are given.
+ */
+public class FactoryTracingJfrReplay {
+    private static final Duration COMPLETION_TIMEOUT = Duration.ofMinutes(1);
+
+    private FactoryTracingJfrReplay() {
+    }
+
+    /**
+     * @param recording The recording to read.
+     * @param channel   The channel to the Factory server, which is not shut down.
+     * @param timeout   The time to wait, once every trace is sent, for the server to complete the stream.
+     * @return The number of traces sent.
+     * @throws TimeoutException if the server does not complete the stream within the timeout.
+     */
+    public static int replay(Path recording, ManagedChannel channel, Duration timeout)
+            throws IOException, InterruptedException, TimeoutException {
+        Map<Long, Long> analysisIds = createAnalyses(recording, TracingServiceGrpc.newBlockingStub(channel));
+
+        // Starts and ends in the order they happened, so that every parent starts before its children
+        List<TimedReq> reqs = new ArrayList<>();
+        try (RecordingFile file = new RecordingFile(recording)) {
+            while (file.hasMoreEvents()) {
+                RecordedEvent event = file.readEvent();
+                if (!event.getEventType().getName().equals(TRACE_EVENT)) continue;
+                reqs.add(new TimedReq(event.getStartTime(), false, start(event, analysisIds)));
+                reqs.add(new TimedReq(event.getEndTime(), true, end(event)));
+            }
+        }
+        reqs.sort(Comparator.<TimedReq, Instant>comparing(req -> req.time).thenComparing(req -> req.end));
+
+        CountDownLatch finished = new CountDownLatch(1);
+        Throwable[] error = new Throwable[1];
+        StreamObserver<Trace.Req> stream = TracingServiceGrpc.newStub(channel).stream(new StreamObserver<Trace.Res>() {
+            @Override
+            public void onNext(Trace.Res res) {
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                error[0] = throwable;
+                finished.countDown();
+            }
+
+            @Override
+            public void onCompleted() {
+                finished.countDown();
+            }
+        });
+        for (TimedReq req : reqs) stream.onNext(req.req);
+        stream.onCompleted();
+        if (!finished.await(timeout.toNanos(), TimeUnit.NANOSECONDS)) {
+            throw new TimeoutException("The server did not complete the stream within " + timeout);
+        }
+        if (error[0] != null) throw new RuntimeException(error[0]);
+        return reqs.size() / 2;
+    }
+
+    private static Map<Long, Long> createAnalyses(Path recording, TracingServiceBlockingStub blockingStub) throws IOException {
+        Map<Long, Long> analysisIds = new HashMap<>();
+        try (RecordingFile file = new RecordingFile(recording)) {
+            while (file.hasMoreEvents()) {
+                RecordedEvent event = file.readEvent();
+                if (!event.getEventType().getName().equals(ANALYSIS_EVENT)) continue;
+                Analysis.Res res = blockingStub.create(Analysis.Req.newBuilder()
+                                                               .setOwner(event.getString("owner"))
+                                                               .setRepo(event.getString("repo"))
+                                                               .setCommit(event.getString("commit"))
+                                                               .setName(event.getString("name"))
+                                                               .build());
+                analysisIds.put(event.getLong("analysis"), res.getAnalysisId());
+            }
+        }
+        return analysisIds;
+    }
+
+    private static Trace.Req start(RecordedEvent event, Map<Long, Long> analysisIds) {
+        Trace.Req.Builder req = Trace.Req.newBuilder()
+                .setId(toBuf(id(event, "id")))
+                .setName(event.getString("name"))
+                .setStarted(event.getStartTime().toEpochMilli());
+        UUID parentId = id(event, "parentId");
+        // Only roots are looked up by their analysis, which children repeat and continued traces leave at 0
+        if (parentId.getMostSignificantBits() == 0 && parentId.getLeastSignificantBits() == 0) {
+            Long analysisId = analysisIds.get(event.getLong("analysis"));
+            if (analysisId == null) {
+                throw new IllegalStateException("The recording is missing the analysis of trace " + id(event, "id"));
+            }
+            req.setRootStart(Trace.Req.StartRoot.newBuilder()
+                                     .setAnalysisId(analysisId)
+                                     .setTracker(event.getString("tracker"))
+                                     .setIteration(event.getInt("iteration")));
+        } else {
+            req.setRootId(toBuf(id(event, "rootId"))).setParentId(toBuf(parentId));
+        }
+        String data = event.getString("data");
+        if (data != null) req.setData(data);
+        req.addAllLabels(FactoryTracingJfr.decodeLabels(event.getString("labels")));
+        return req.build();
+    }
+
+    private static Trace.Req end(RecordedEvent event) {
+        return Trace.Req.newBuilder()
+                .setId(toBuf(id(event, "id")))
+                .setRootId(toBuf(id(event, "rootId")))
+                .setEnded(event.getEndTime().toEpochMilli())
+                .build();
+    }
+
+    private static UUID id(RecordedEvent event, String field) {
+        return new UUID(event.getLong(field + "Most"), event.getLong(field + "Least"));
+    }
+
+    private static class TimedReq {
+        private final Instant time;
+        private final boolean end;
+        private final Trace.Req req;
+
+        private TimedReq(Instant time, boolean end, Trace.Req req) {
+            this.time = time;
+            this.end = end;
+            this.req = req;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2 && args.length != 4) {
+            System.err.println("Usage: jfr-replay <recording.jfr> <uri> [<username> <token>]");
+            System.exit(1);
+        }
+        FactoryTracingBuilder builder = FactoryTracing.builder().target(args[1]);
+        if (args.length == 4) builder.credentials(args[2], args[3]);
+        else builder.usePlaintext();
+        ManagedChannel channel = builder.buildChannel();
+        try {
+            int traces = replay(Paths.get(args[0]), channel, COMPLETION_TIMEOUT);
+            System.out.println("Replayed " + traces + " traces from " + args[0]);
+        } finally {
+            channel.shutdown();
+            channel.awaitTermination(1, TimeUnit.MINUTES);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2022 Vaticle
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.vaticle.factory.tracing.tool;
+
+import java.util.Arrays;
+
+/**
+ * The Mann-Whitney U test of whether two samples come from the same distribution, with Cliff's delta as its effect
+ * size. Neither assumes latencies are normally distributed, which they rarely are.
+ */
+public class MannWhitney {
+    private final double pValue;
+    private final double cliffsDelta;
+
+    private MannWhitney(double pValue, double cliffsDelta) {
+        this.pValue = pValue;
+        this.cliffsDelta = cliffsDelta;
+    }
+
+    /**
+     * Compare the samples using the normal approximation of U with a correction for ties, which is accurate once both
+     * samples have more than a handful of values.
+     */
+    public static MannWhitney test(long[] baseline, long[] candidate) {
+        int n1 = baseline.length;
+        int n2 = candidate.length;
+        if (n1 == 0 || n2 == 0) return new MannWhitney(1, 0);
+        long[] values = new long[n1 + n2];
+        boolean[] fromBaseline = new boolean[n1 + n2];
+        Integer[] order = new Integer[n1 + n2];
+        for (int i = 0; i < n1; i++) values[i] = baseline[i];
+        for (int i = 0; i < n2; i++) values[n1 + i] = candidate[i];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+            fromBaseline[i] = i < n1;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(values[a], values[b]));
+
+        double baselineRankSum = 0;
+        double tieCorrection = 0;
+        for (int start = 0; start < order.length; ) {
+            int end = start;
+            while (end + 1 < order.length && values[order[end + 1]] == values[order[start]]) end++;
+            double rank = (start + end) / 2.0 + 1;
+            for (int i = start; i <= end; i++) {
+                if (fromBaseline[order[i]]) baselineRankSum += rank;
+            }
+            double ties = end - start + 1;
+            tieCorrection += ties * ties * ties - ties;
+            start = end + 1;
+        }
+
+        double u1 = baselineRankSum - n1 * (n1 + 1) / 2.0;
+        double n = n1 + n2;
+        double mean = n1 * (double) n2 / 2;
+        double variance = n1 * (double) n2 / 12 * ((n + 1) - tieCorrection / (n * (n - 1)));
+        double pValue;
+        if (variance <= 0) {
+            pValue = 1;
+        } else {
+            double z = (Math.abs(u1 - mean) - 0.5) / Math.sqrt(variance);
+            pValue = Math.min(1, 2 * (1 - normalCdf(Math.max(z, 0))));
+        }
+        // U1 counts the pairs where the baseline is larger, with ties counting half
+        return new MannWhitney(pValue, 1 - 2 * u1 / (n1 * (double) n2));
+    }
+
+    /**
+     * @return The two-sided probability of a difference at least this large if both samples had the same distribution.
+     */
+    public double pValue() {
+        return pValue;
+    }
+
+    /**
+     * @return The probability that a candidate value is larger than a baseline value minus the reverse, from -1 when
+     * the candidate is always faster to 1 when it is always slower.
+     */
+    public double cliffsDelta() {
+        return cliffsDelta;
+    }
+
+    /**
+     * The standard normal cumulative distribution, from the approximation of erf by Abramowitz and Stegun (7.1.26),
+     * which is accurate to about 1e-7.
+     */
+    private static double normalCdf(double z) {
+        double x = Math.abs(z) / Math.sqrt(2);
+        double t = 1 / (1 + 0.3275911 * x);
+        double erf = 1 - t * (0.254829592 + t * (-0.284496736 + t * (1.421413741 + t * (-1.453152027 + t * 1.061405429))))
+                * Math.exp(-x * x);
+        return z >= 0 ? (1 + erf) / 2 : (1 - erf) / 2;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2022 Vaticle
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.vaticle.factory.tracing.tool.test;
+
+import com.google.protobuf.ByteString;
+import com.vaticle.factory.tracing.protocol.TracingProto.Trace;
+import com.vaticle.factory.tracing.tool.FactoryTracingFlameGraph;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.equalTo;
+
+public class FactoryTracingFlameGraphTest {
+    private static final ByteString ROOT = ByteString.copyFromUtf8("root");
+    private static final ByteString OTHER_ROOT = ByteString.copyFromUtf8("other root");
+    private static final ByteString A = ByteString.copyFromUtf8("a");
+    private static final ByteString B = ByteString.copyFromUtf8("b");
+    private static final ByteString MISSING = ByteString.copyFromUtf8("missing");
+
+    private final ByteArrayOutputStream recording = new ByteArrayOutputStream();
+
+    @Test
+    public void joinsTrackerAndNamesAndSumsSelfTimes() throws Exception {
+        // root 0-100 with a 10-40, whose child b 20-30, and the same root again with a 10-20
+        write(rootStart(ROOT, "root", 1000), childStart(A, ROOT, ROOT, "a", 1010),
+              childStart(B, A, ROOT, "b", 1020), end(B, ROOT, 1030), end(A, ROOT, 1040), end(ROOT, ROOT, 1100));
+        write(rootStart(OTHER_ROOT, "root", 2000), childStart(A, OTHER_ROOT, OTHER_ROOT, "a", 2010),
+              end(A, OTHER_ROOT, 2020), end(OTHER_ROOT, OTHER_ROOT, 2100));
+
+        assertThat(convert(16), containsInAnyOrder("tracker;root 160", "tracker;root;a 30", "tracker;root;a;b 10"));
+    }
+
+    @Test
+    public void escapesSeparatorsInNames() throws Exception {
+        write(rootStart(ROOT, "root;with\nseparators\r", 1000), end(ROOT, ROOT, 1010));
+
+        assertThat(convert(16), containsInAnyOrder("tracker;root:with separators  10"));
+    }
+
+    @Test
+    public void placesTracesWithAMissingParentUnderTheTracker() throws Exception {
+        write(rootStart(ROOT, "root", 1000), childStart(A, MISSING, ROOT, "orphan", 1010),
+              childStart(B, A, ROOT, "child", 1020), end(B, ROOT, 1025), end(A, ROOT, 1040), end(ROOT, ROOT, 1100));
+
+        assertThat(convert(16), containsInAnyOrder("tracker;root 100", "tracker;orphan 25", "tracker;orphan;child 5"));
+    }
+
+    @Test
+    public void writesSumsOutWhenMoreThanTheMaximumStacksAreOpen() throws Exception {
+        // Each root has 10ms of self time, and two distinct stacks do not fit in one
+        write(rootStart(ROOT, "first", 1000), end(ROOT, ROOT, 1010));
+        write(rootStart(OTHER_ROOT, "second", 2000), end(OTHER_ROOT, OTHER_ROOT, 2010));
+        write(rootStart(A, "first", 3000), end(A, A, 3010));
+        write(rootStart(B, "first", 4000), end(B, B, 4010));
+
+        assertThat(convert(1), equalTo(Arrays.asList("tracker;first 10", "tracker;second 10", "tracker;first 20")));
+    }
+
+    private void write(Trace.Req... reqs) throws IOException {
+        for (Trace.Req req : reqs) req.writeDelimitedTo(recording);
+    }
+
+    private List<String> convert(int maxStacks) throws IOException {
+        StringWriter out = new StringWriter();
+        new FactoryTracingFlameGraph(out, maxStacks).convert(new ByteArrayInputStream(recording.toByteArray()));
+        return Arrays.stream(out.toString().split("\n")).collect(Collectors.toList());
+    }
+
+    private static Trace.Req rootStart(ByteString id, String name, long started) {
+        return Trace.Req.newBuilder().setId(id).setRootId(id).setName(name).setStarted(started)
+                .setRootStart(Trace.Req.StartRoot.newBuilder().setAnalysisId(1).setTracker("tracker")).build();
+    }
+
+    private static Trace.Req childStart(ByteString id, ByteString parentId, ByteString rootId, String name,
+                                        long started) {
+        return Trace.Req.newBuilder().setId(id).setRootId(rootId).setParentId(parentId).setName(name)
+                .setStarted(started).build();
+    }
+
+    private static Trace.Req end(ByteString id, ByteString rootId, long ended) {
+        return Trace.Req.newBuilder().setId(id).setRootId(rootId).setEnded(ended).build();
+    }
+}
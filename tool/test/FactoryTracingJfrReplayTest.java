@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2022 Vaticle
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.vaticle.factory.tracing.tool.test;
+
+import com.vaticle.factory.tracing.client.FactoryTracing;
+import com.vaticle.factory.tracing.client.FactoryTracingJfr;
+import com.vaticle.factory.tracing.protocol.TracingProto;
+import com.vaticle.factory.tracing.protocol.TracingServiceGrpc;
+import com.vaticle.factory.tracing.tool.FactoryTracingJfrReplay;
+import io.grpc.ManagedChannel;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import io.grpc.testing.GrpcCleanupRule;
+import jdk.jfr.Recording;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static com.vaticle.factory.tracing.protocol.util.ProtobufUUIDUtil.toBuf;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class FactoryTracingJfrReplayTest {
+
+    @Rule
+    public final GrpcCleanupRule grpcCleanup = new GrpcCleanupRule();
+
+    private final List<TracingProto.Analysis.Req> analyses = new CopyOnWriteArrayList<>();
+    private final List<TracingProto.Trace.Req> traces = new CopyOnWriteArrayList<>();
+
+    private final TracingServiceGrpc.TracingServiceImplBase service = new TracingServiceGrpc.TracingServiceImplBase() {
+        @Override
+        public void create(TracingProto.Analysis.Req request, StreamObserver<TracingProto.Analysis.Res> responseObserver) {
+            analyses.add(request);
+            responseObserver.onNext(TracingProto.Analysis.Res.newBuilder().setAnalysisId(42).build());
+            responseObserver.onCompleted();
+        }
+
+        @Override
+        public StreamObserver<TracingProto.Trace.Req> stream(StreamObserver<TracingProto.Trace.Res> responseObserver) {
+            return new StreamObserver<TracingProto.Trace.Req>() {
+                @Override
+                public void onNext(TracingProto.Trace.Req req) {
+                    traces.add(req);
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                }
+
+                @Override
+                public void onCompleted() {
+                    responseObserver.onCompleted();
+                }
+            };
+        }
+    };
+
+    @Test
+    public void replaysTracesInTheOrderTheyHappened() throws Exception {
+        Path file = Files.createTempFile("factory-tracing", ".jfr");
+        FactoryTracing.Trace root;
+        FactoryTracing.Trace child;
+        try {
+            try (Recording recording = new Recording()) {
+                recording.enable(FactoryTracingJfr.ANALYSIS_EVENT);
+                recording.enable(FactoryTracingJfr.TRACE_EVENT);
+                recording.start();
+                root = new FactoryTracingJfr().analysis("owner", "repo", "commit", "analysis")
+                        .trace("root", "tracker", 3);
+                child = root.trace("child").labels("a\nb", "c").data("data");
+                child.end();
+                root.end();
+                recording.stop();
+                recording.dump(file);
+            }
+
+            String serverName = InProcessServerBuilder.generateName();
+            grpcCleanup.register(InProcessServerBuilder.forName(serverName).directExecutor()
+                                         .addService(service).build().start());
+            ManagedChannel channel = grpcCleanup.register(
+                    InProcessChannelBuilder.forName(serverName).directExecutor().build());
+
+            assertThat(FactoryTracingJfrReplay.replay(file, channel, Duration.ofSeconds(10)), equalTo(2));
+        } finally {
+            Files.delete(file);
+        }
+
+        assertThat(analyses.size(), equalTo(1));
+        assertThat(analyses.get(0).getName(), equalTo("analysis"));
+        assertThat(traces.size(), equalTo(4));
+        TracingProto.Trace.Req rootStart = traces.get(0);
+        assertThat(rootStart.getId(), equalTo(toBuf(root.getId())));
+        assertThat(rootStart.getRootStart().getAnalysisId(), equalTo(42L));
+        assertThat(rootStart.getRootStart().getIteration(), equalTo(3));
+        TracingProto.Trace.Req childStart = traces.get(1);
+        assertThat(childStart.getId(), equalTo(toBuf(child.getId())));
+        assertThat(childStart.getParentId(), equalTo(toBuf(root.getId())));
+        assertThat(childStart.getLabelsList(), equalTo(Arrays.asList("a\nb", "c")));
+        assertThat(childStart.getData(), equalTo("data"));
+        assertThat(traces.get(2).getId(), equalTo(toBuf(child.getId())));
+        assertThat(traces.get(3).getId(), equalTo(toBuf(root.getId())));
+    }
+}
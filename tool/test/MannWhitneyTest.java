@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2022 Vaticle
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.vaticle.factory.tracing.tool.test;
+
+import com.vaticle.factory.tracing.tool.MannWhitney;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.equalTo;
+
+/**
+ * Checks the test against values worked by hand, using the normal approximation with a continuity correction.
+ */
+public class MannWhitneyTest {
+
+    private static final double TOLERANCE = 1e-6;
+
+    @Test
+    public void separatedSamples() {
+        MannWhitney test = MannWhitney.test(new long[]{1, 2, 3, 4, 5}, new long[]{6, 7, 8, 9, 10});
+        // U = 0, z = 12 / sqrt(275 / 12)
+        assertThat(test.pValue(), closeTo(0.0121858, TOLERANCE));
+        assertThat(test.cliffsDelta(), closeTo(1, TOLERANCE));
+    }
+
+    @Test
+    public void overlappingSamples() {
+        MannWhitney test = MannWhitney.test(new long[]{19, 22, 16, 29, 24}, new long[]{20, 11, 17, 12});
+        // U = 3 for the candidate, so 17 for the baseline, and z = 6.5 / sqrt(50 / 3)
+        assertThat(test.pValue(), closeTo(0.1113469, TOLERANCE));
+        assertThat(test.cliffsDelta(), closeTo(-0.7, TOLERANCE));
+    }
+
+    @Test
+    public void tiedSamples() {
+        MannWhitney test = MannWhitney.test(new long[]{1, 2, 2, 3, 5, 5}, new long[]{2, 3, 3, 4, 6});
+        // Ties count half in U = 11 and reduce the variance by 30 * 54 / (12 * 11 * 10)
+        assertThat(test.pValue(), closeTo(0.5140816, TOLERANCE));
+        assertThat(test.cliffsDelta(), closeTo(4.0 / 15, TOLERANCE));
+    }
+
+    @Test
+    public void deltaIsPositiveWhenCandidateIsSlower() {
+        long[] faster = {10, 11, 12, 13, 14, 15};
+        long[] slower = {13, 16, 17, 18, 19, 20};
+        MannWhitney slowedDown = MannWhitney.test(faster, slower);
+        MannWhitney spedUp = MannWhitney.test(slower, faster);
+
+        assertThat(slowedDown.cliffsDelta() > 0, equalTo(true));
+        assertThat(spedUp.cliffsDelta(), closeTo(-slowedDown.cliffsDelta(), TOLERANCE));
+        assertThat(spedUp.pValue(), closeTo(slowedDown.pValue(), TOLERANCE));
+    }
+
+    @Test
+    public void identicalSamplesShowNoDifference() {
+        MannWhitney test = MannWhitney.test(new long[]{4, 4, 4}, new long[]{4, 4});
+        assertThat(test.pValue(), equalTo(1.0));
+        assertThat(test.cliffsDelta(), equalTo(0.0));
+    }
+
+    @Test
+    public void emptySampleShowsNoDifference() {
+        MannWhitney test = MannWhitney.test(new long[0], new long[]{1, 2, 3});
+        assertThat(test.pValue(), equalTo(1.0));
+        assertThat(test.cliffsDelta(), equalTo(0.0));
+    }
+}